@@ -0,0 +1,70 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a solver from scratch by adding every constraint of a workload.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AddConstraintBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    @Param({"HASH", "SPARSE"})
+    public RowFactory rows;
+
+    private List<Constraint> constraints;
+
+    @Setup
+    public void setUp() throws NonlinearExpressionException {
+        constraints = Workload.create(workload, size).parseWithInputs(new Workload.Variables());
+    }
+
+    @Benchmark
+    public Solver addConstraints() throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        Solver solver = new Solver(rows);
+        for (Constraint constraint : constraints) {
+            solver.addConstraint(constraint);
+        }
+        return solver;
+    }
+
+    @Benchmark
+    public Solver addConstraintsBatch() throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        Solver solver = new Solver(rows);
+        solver.addConstraints(constraints);
+        return solver;
+    }
+
+    @Benchmark
+    public Solver addConstraintsWithPresolve() throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        Solver solver = new Solver(rows);
+        solver.setPresolve(true);
+        for (Constraint constraint : constraints) {
+            solver.addConstraint(constraint);
+        }
+        return solver;
+    }
+}
@@ -0,0 +1,94 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several threads suggest values for the inputs of one shared workload,
+ * through a solver guarded by one coarse lock and through a
+ * ConcurrentSolver. Each suggestion waits until the variables have been
+ * updated with it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentSolverBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private Solver locked;
+
+    private ConcurrentSolver concurrent;
+
+    private Variable[] lockedInputs;
+
+    private Variable[] concurrentInputs;
+
+    private double[] values;
+
+    @Setup
+    public void setUp() throws Exception {
+        Workload workload = Workload.create(this.workload, size);
+        Workload.Variables lockedVariables = new Workload.Variables();
+        Workload.Variables concurrentVariables = new Workload.Variables();
+
+        locked = new Solver();
+        locked.addConstraints(workload.parse(lockedVariables));
+        concurrent = new ConcurrentSolver();
+        concurrent.addConstraints(workload.parse(concurrentVariables));
+
+        lockedInputs = new Variable[workload.inputs.size()];
+        concurrentInputs = new Variable[workload.inputs.size()];
+        values = new double[workload.inputs.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> input : workload.inputs.entrySet()) {
+            lockedInputs[i] = lockedVariables.resolveVariable(input.getKey());
+            concurrentInputs[i] = concurrentVariables.resolveVariable(input.getKey());
+            values[i] = input.getValue();
+            locked.addEditVariable(lockedInputs[i], Strength.STRONG);
+            concurrent.addEditVariable(concurrentInputs[i], Strength.STRONG);
+            i++;
+        }
+        concurrent.flush().get();
+    }
+
+    @Benchmark
+    public void suggestWithLock() throws UnknownEditVariableException {
+        int i = ThreadLocalRandom.current().nextInt(values.length);
+        double value = values[i] * (0.9 + 0.2 * ThreadLocalRandom.current().nextDouble());
+        synchronized (locked) {
+            locked.suggestValue(lockedInputs[i], value);
+            locked.updateVariables();
+        }
+    }
+
+    @Benchmark
+    public void suggestConcurrent() throws InterruptedException, ExecutionException {
+        int i = ThreadLocalRandom.current().nextInt(values.length);
+        double value = values[i] * (0.9 + 0.2 * ThreadLocalRandom.current().nextDouble());
+        concurrent.suggestValue(concurrentInputs[i], value).get();
+    }
+}
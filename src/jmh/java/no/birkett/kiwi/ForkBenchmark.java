@@ -0,0 +1,93 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Previews a layout with one input moved, as a drag preview does, by
+ * forking the solver and by building a new solver from scratch. The
+ * solver the previews start from is never changed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ForkBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private List<Constraint> constraints;
+
+    private Solver solver;
+
+    private Variable[] editVariables;
+
+    private double[] values;
+
+    private boolean grow;
+
+    @Setup
+    public void setUp() throws KiwiException, UnknownEditVariableException {
+        Workload workload = Workload.create(this.workload, size);
+        Workload.Variables variables = new Workload.Variables();
+        constraints = workload.parse(variables);
+
+        solver = new Solver();
+        solver.addConstraints(constraints);
+        editVariables = new Variable[workload.inputs.size()];
+        values = new double[workload.inputs.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> input : workload.inputs.entrySet()) {
+            editVariables[i] = variables.resolveVariable(input.getKey());
+            values[i] = input.getValue();
+            solver.addEditVariable(editVariables[i], Strength.STRONG);
+            solver.suggestValue(editVariables[i], values[i]);
+            i++;
+        }
+        solver.updateVariables();
+    }
+
+    @Benchmark
+    public Solver previewFork() throws UnknownEditVariableException {
+        Solver preview = solver.fork();
+        preview.suggestValue(editVariables[0], moved());
+        preview.updateVariables();
+        return preview;
+    }
+
+    @Benchmark
+    public Solver previewRebuild() throws KiwiException, UnknownEditVariableException {
+        Solver preview = new Solver();
+        preview.addConstraints(constraints);
+        for (int i = 0; i < editVariables.length; i++) {
+            preview.addEditVariable(editVariables[i], Strength.STRONG);
+            preview.suggestValue(editVariables[i], i == 0 ? moved() : values[i]);
+        }
+        preview.updateVariables();
+        return preview;
+    }
+
+    private double moved() {
+        grow = !grow;
+        return values[0] * (grow ? 1.1 : 0.9);
+    }
+}
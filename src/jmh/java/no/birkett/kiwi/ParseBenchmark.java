@@ -0,0 +1,47 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses every constraint string of a workload with {@link ConstraintParser},
+ * resolving variables into a fresh set each time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private Workload constraints;
+
+    @Setup
+    public void setUp() {
+        constraints = Workload.create(workload, size);
+    }
+
+    @Benchmark
+    public List<Constraint> parse() throws NonlinearExpressionException {
+        return constraints.parseWithInputs(new Workload.Variables());
+    }
+}
@@ -0,0 +1,121 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the grid workload, which is made of independent copies of one
+ * layout, and resizes every copy at once, with a single solver and with
+ * one tableau per copy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class PartitionedSolverBenchmark {
+
+    @Param({"1000", "5000"})
+    public int size;
+
+    private final ForkJoinPool pool = new ForkJoinPool();
+
+    private List<Constraint> constraints;
+
+    private Solver solver;
+
+    private PartitionedSolver partitioned;
+
+    private Variable[] editVariables;
+
+    private double[] values;
+
+    private double[] scaled;
+
+    private boolean grow;
+
+    @Setup
+    public void setUp() throws KiwiException, UnknownEditVariableException {
+        Workload workload = Workload.grid(size);
+        Workload.Variables variables = new Workload.Variables();
+        constraints = workload.parse(variables);
+
+        solver = new Solver();
+        solver.addConstraints(constraints);
+        partitioned = new PartitionedSolver(pool);
+        partitioned.addConstraints(constraints);
+
+        editVariables = new Variable[workload.inputs.size()];
+        values = new double[workload.inputs.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> input : workload.inputs.entrySet()) {
+            editVariables[i] = variables.resolveVariable(input.getKey());
+            values[i] = input.getValue();
+            solver.addEditVariable(editVariables[i], Strength.STRONG);
+            partitioned.addEditVariable(editVariables[i], Strength.STRONG);
+            i++;
+        }
+        solver.suggestValues(editVariables, values);
+        partitioned.suggestValues(editVariables, values);
+        scaled = new double[values.length];
+        solver.updateVariables();
+        partitioned.updateVariables();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Solver addConstraints() throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        Solver solver = new Solver();
+        solver.addConstraints(constraints);
+        return solver;
+    }
+
+    @Benchmark
+    public PartitionedSolver addConstraintsPartitioned() throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        PartitionedSolver solver = new PartitionedSolver(pool);
+        solver.addConstraints(constraints);
+        return solver;
+    }
+
+    @Benchmark
+    public void suggestValuesAndUpdate() throws UnknownEditVariableException {
+        scale();
+        solver.suggestValues(editVariables, scaled);
+        solver.updateVariables();
+    }
+
+    @Benchmark
+    public void suggestValuesAndUpdatePartitioned() throws UnknownEditVariableException {
+        scale();
+        partitioned.suggestValues(editVariables, scaled);
+        partitioned.updateVariables();
+    }
+
+    private void scale() {
+        grow = !grow;
+        double factor = grow ? 1.1 : 0.9;
+        for (int i = 0; i < values.length; i++) {
+            scaled[i] = values[i] * factor;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes every constraint of a workload from a fully built solver, one
+ * constraint at a time or as a single batch. The solver is rebuilt
+ * outside the measurement before each invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RemoveConstraintBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    @Param({"HASH", "SPARSE"})
+    public RowFactory rows;
+
+    private List<Constraint> constraints;
+
+    private Solver solver;
+
+    @Setup(Level.Trial)
+    public void parse() throws NonlinearExpressionException {
+        constraints = Workload.create(workload, size).parseWithInputs(new Workload.Variables());
+    }
+
+    @Setup(Level.Invocation)
+    public void build() throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        solver = new Solver(rows);
+        for (Constraint constraint : constraints) {
+            solver.addConstraint(constraint);
+        }
+    }
+
+    @Benchmark
+    public Solver removeConstraints() throws UnknownConstraintException {
+        for (Constraint constraint : constraints) {
+            solver.removeConstraint(constraint);
+        }
+        return solver;
+    }
+
+    @Benchmark
+    public Solver removeConstraintsBatch() throws UnknownConstraintException {
+        solver.removeConstraints(constraints);
+        return solver;
+    }
+}
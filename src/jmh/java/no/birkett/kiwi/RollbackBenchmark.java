@@ -0,0 +1,106 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds a batch of constraints which fails on its last constraint, and
+ * gets back to the state before the batch by rolling back to a
+ * checkpoint and by building a new solver from scratch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RollbackBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private List<Constraint> constraints;
+
+    private Solver solver;
+
+    private Variable[] editVariables;
+
+    private double[] values;
+
+    @Setup
+    public void setUp() throws KiwiException, UnknownEditVariableException {
+        Workload workload = Workload.create(this.workload, size);
+        Workload.Variables variables = new Workload.Variables();
+        constraints = workload.parse(variables);
+
+        solver = new Solver();
+        solver.addConstraints(constraints);
+        editVariables = new Variable[workload.inputs.size()];
+        values = new double[workload.inputs.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> input : workload.inputs.entrySet()) {
+            editVariables[i] = variables.resolveVariable(input.getKey());
+            values[i] = input.getValue();
+            solver.addEditVariable(editVariables[i], Strength.STRONG);
+            solver.suggestValue(editVariables[i], values[i]);
+            i++;
+        }
+        solver.updateVariables();
+    }
+
+    @Benchmark
+    public Solver rollback() throws KiwiException {
+        Checkpoint checkpoint = solver.checkpoint();
+        addFailingBatch(solver);
+        solver.rollback(checkpoint);
+        solver.release(checkpoint);
+        solver.updateVariables();
+        return solver;
+    }
+
+    @Benchmark
+    public Solver rebuild() throws KiwiException, UnknownEditVariableException {
+        addFailingBatch(solver);
+        Solver rebuilt = new Solver();
+        rebuilt.addConstraints(constraints);
+        for (int i = 0; i < editVariables.length; i++) {
+            rebuilt.addEditVariable(editVariables[i], Strength.STRONG);
+            rebuilt.suggestValue(editVariables[i], values[i]);
+        }
+        rebuilt.updateVariables();
+        solver = rebuilt;
+        return rebuilt;
+    }
+
+    /**
+     * Pin the first input, then contradict the pin.
+     */
+    private void addFailingBatch(Solver solver) throws DuplicateConstraintException {
+        Variable input = editVariables[0];
+        try {
+            solver.addConstraints(Arrays.asList(
+                    Symbolics.equals(input, values[0] * 1.1),
+                    Symbolics.equals(input, values[0] * 0.9)));
+            throw new IllegalStateException("the batch was added");
+        } catch (UnsatisfiableConstraintException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suggests new values for every input of a workload and updates the
+ * variables, as a resize or drag does once per frame. The suggested values
+ * alternate between 10% above and 10% below the input values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class SuggestValueBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    @Param({"HASH", "SPARSE"})
+    public RowFactory rows;
+
+    private Solver solver;
+
+    private Variable[] editVariables;
+
+    private double[] values;
+
+    private double[] scaled;
+
+    private boolean grow;
+
+    @Setup
+    public void setUp() throws KiwiException, UnknownEditVariableException {
+        Workload workload = Workload.create(this.workload, size);
+        Workload.Variables variables = new Workload.Variables();
+
+        solver = new Solver(rows);
+        for (Constraint constraint : workload.parse(variables)) {
+            solver.addConstraint(constraint);
+        }
+
+        editVariables = new Variable[workload.inputs.size()];
+        values = new double[workload.inputs.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> input : workload.inputs.entrySet()) {
+            editVariables[i] = variables.resolveVariable(input.getKey());
+            values[i] = input.getValue();
+            solver.addEditVariable(editVariables[i], Strength.STRONG);
+            solver.suggestValue(editVariables[i], values[i]);
+            i++;
+        }
+        scaled = new double[values.length];
+        solver.updateVariables();
+    }
+
+    @Benchmark
+    public void suggestAndUpdate() throws UnknownEditVariableException {
+        grow = !grow;
+        double factor = grow ? 1.1 : 0.9;
+        for (int i = 0; i < editVariables.length; i++) {
+            solver.suggestValue(editVariables[i], values[i] * factor);
+        }
+        solver.updateVariables();
+    }
+
+    @Benchmark
+    public void suggestValuesAndUpdate() throws UnknownEditVariableException {
+        grow = !grow;
+        double factor = grow ? 1.1 : 0.9;
+        for (int i = 0; i < values.length; i++) {
+            scaled[i] = values[i] * factor;
+        }
+        solver.suggestValues(editVariables, scaled);
+        solver.updateVariables();
+    }
+}
@@ -0,0 +1,65 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes the second half of the constraints of a workload out of a built
+ * solver and puts them back, like switching between alternative layouts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ToggleConstraintBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private List<Constraint> toggled;
+
+    private Solver solver;
+
+    @Setup(Level.Trial)
+    public void build() throws NonlinearExpressionException, DuplicateConstraintException, UnsatisfiableConstraintException {
+        List<Constraint> constraints = Workload.create(workload, size).parseWithInputs(new Workload.Variables());
+        solver = new Solver();
+        solver.addConstraints(constraints);
+        toggled = constraints.subList(constraints.size() / 2, constraints.size());
+        solver.defineGroup("toggled", toggled);
+    }
+
+    @Benchmark
+    public Solver disableAndEnableGroup() throws UnknownConstraintException, UnsatisfiableConstraintException {
+        solver.disableGroup("toggled");
+        solver.enableGroup("toggled");
+        return solver;
+    }
+
+    @Benchmark
+    public Solver removeAndAddConstraints() throws UnknownConstraintException, DuplicateConstraintException, UnsatisfiableConstraintException {
+        for (Constraint constraint : toggled) {
+            solver.removeConstraint(constraint);
+        }
+        solver.addConstraints(toggled);
+        return solver;
+    }
+}
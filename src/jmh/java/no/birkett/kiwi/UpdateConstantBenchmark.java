@@ -0,0 +1,86 @@
+package no.birkett.kiwi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes the constant of every constraint of a workload which has one,
+ * like a theme change touching all the spacings of a layout. Each
+ * invocation moves the constants by one in the opposite direction to the
+ * previous one, so the solver alternates between two states.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class UpdateConstantBenchmark {
+
+    @Param({"chain", "grid", "random"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private List<Constraint> constants;
+
+    private Solver solver;
+
+    private double step = 1.0;
+
+    @Setup(Level.Trial)
+    public void build() throws NonlinearExpressionException, DuplicateConstraintException, UnsatisfiableConstraintException {
+        Workload workload = Workload.create(this.workload, size);
+        List<Constraint> constraints = workload.parseWithInputs(new Workload.Variables());
+        solver = new Solver();
+        for (Constraint constraint : constraints) {
+            solver.addConstraint(constraint);
+        }
+
+        // Leave the inputs alone, they are not spacings.
+        constants = new ArrayList<>();
+        for (Constraint constraint : constraints.subList(0, constraints.size() - workload.inputs.size())) {
+            if (constraint.getExpression().getConstant() != 0.0) {
+                constants.add(constraint);
+            }
+        }
+    }
+
+    @Benchmark
+    public Solver updateConstants() throws UnknownConstraintException, UnsatisfiableConstraintException {
+        step = -step;
+        for (Constraint constraint : constants) {
+            solver.updateConstant(constraint, constraint.getExpression().getConstant() + step);
+        }
+        solver.updateVariables();
+        return solver;
+    }
+
+    @Benchmark
+    public Solver removeAndAddConstraints() throws UnknownConstraintException, DuplicateConstraintException, UnsatisfiableConstraintException {
+        step = -step;
+        for (Constraint constraint : constants) {
+            Expression expression = constraint.getExpression();
+            solver.removeConstraint(constraint);
+            expression.setConstant(expression.getConstant() + step);
+            solver.addConstraint(constraint);
+        }
+        solver.updateVariables();
+        return solver;
+    }
+}
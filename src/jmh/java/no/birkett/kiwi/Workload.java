@@ -0,0 +1,169 @@
+package no.birkett.kiwi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A constraint system used by the benchmarks.
+ * <p/>
+ * The system is described as constraint strings for {@link ConstraintParser}
+ * plus a set of input variables with values. The inputs are either added as
+ * required constraints, or used as edit variables when benchmarking
+ * suggestValue.
+ */
+class Workload {
+
+    private static final Pattern NODE = Pattern.compile("\\b([A-Za-z][A-Za-z0-9]*)\\.");
+    private static final Pattern DERIVED = Pattern.compile("\\b(\\w+)\\.(right|bottom)\\b");
+
+    final List<String> constraints = new ArrayList<>();
+    final Map<String, Double> inputs = new LinkedHashMap<>();
+
+    static Workload create(String name, int size) {
+        if ("chain".equals(name)) {
+            return chain(size);
+        } else if ("grid".equals(name)) {
+            return grid(size);
+        } else if ("random".equals(name)) {
+            return random(size, 42);
+        }
+        throw new IllegalArgumentException("unknown workload " + name);
+    }
+
+    /**
+     * The chain from Benchmarks.testAddingLotsOfConstraints: each variable is
+     * 100 more than the previous one, and the first one is an input.
+     */
+    static Workload chain(int size) {
+        Workload workload = new Workload();
+        for (int i = 1; i < size; i++) {
+            workload.constraints.add("variable" + i + " == 100 + variable" + (i - 1));
+        }
+        workload.inputs.put("variable0", 100.0);
+        return workload;
+    }
+
+    /**
+     * Copies of the grid layout from RealWorldTests, one per hundred
+     * constraints requested. The right and bottom edges of each node are
+     * derived from its position and size, as the test's resolver does.
+     */
+    static Workload grid(int size) {
+        Workload workload = new Workload();
+        int copies = Math.max(1, size / 100);
+        for (int copy = 0; copy < copies; copy++) {
+            String prefix = "g" + copy + "_";
+            Set<String> derived = new LinkedHashSet<>();
+            for (String constraint : RealWorldTests.CONSTRAINTS) {
+                String prefixed = NODE.matcher(constraint).replaceAll(prefix + "$1.");
+                Matcher matcher = DERIVED.matcher(prefixed);
+                while (matcher.find()) {
+                    String node = matcher.group(1);
+                    if (derived.add(matcher.group())) {
+                        if ("right".equals(matcher.group(2))) {
+                            workload.constraints.add(node + ".right == " + node + ".left + " + node + ".width");
+                        } else {
+                            workload.constraints.add(node + ".bottom == " + node + ".top + " + node + ".height");
+                        }
+                    }
+                }
+                workload.constraints.add(prefixed);
+            }
+            workload.inputs.put(prefix + "container.width", 300.0);
+            for (int title = 0; title < 6; title++) {
+                workload.inputs.put(prefix + "title" + title + ".intrinsicHeight", 100.0 + 10 * title);
+            }
+            workload.inputs.put(prefix + "more.intrinsicHeight", 160.0);
+        }
+        return workload;
+    }
+
+    /**
+     * A random sparse system over the given number of variables. Each
+     * variable gets a required inequality against an earlier variable,
+     * satisfied by a hidden assignment so the system is always solvable,
+     * plus a weak preferred value and sometimes a medium relation. Every
+     * fiftieth variable is an input.
+     */
+    static Workload random(int size, long seed) {
+        Random random = new Random(seed);
+        double[] hidden = new double[size];
+        for (int i = 0; i < size; i++) {
+            hidden[i] = random.nextInt(1000);
+        }
+
+        Workload workload = new Workload();
+        for (int i = 1; i < size; i++) {
+            int j = random.nextInt(i);
+            int offset = (int) (hidden[i] - hidden[j]) - random.nextInt(20);
+            workload.constraints.add("v" + i + " >= v" + j + (offset < 0 ? " - " + -offset : " + " + offset));
+            workload.constraints.add("v" + i + " == " + random.nextInt(1000) + " !weak");
+            if (random.nextInt(3) == 0) {
+                int k = random.nextInt(size);
+                workload.constraints.add("v" + i + " <= v" + k + " * 2 + " + random.nextInt(100) + " !medium");
+            }
+        }
+        for (int i = 0; i < size; i += 50) {
+            workload.inputs.put("v" + i, hidden[i]);
+        }
+        return workload;
+    }
+
+    /**
+     * Parse the constraints of the workload.
+     */
+    List<Constraint> parse(Variables variables) throws NonlinearExpressionException {
+        List<Constraint> parsed = new ArrayList<>();
+        for (String constraint : constraints) {
+            parsed.add(ConstraintParser.parseConstraint(constraint, variables));
+        }
+        return parsed;
+    }
+
+    /**
+     * Parse the constraints of the workload followed by a required
+     * constraint fixing each input to its value.
+     */
+    List<Constraint> parseWithInputs(Variables variables) throws NonlinearExpressionException {
+        List<Constraint> parsed = parse(variables);
+        for (Map.Entry<String, Double> input : inputs.entrySet()) {
+            parsed.add(ConstraintParser.parseConstraint(input.getKey() + " == " + input.getValue(), variables));
+        }
+        return parsed;
+    }
+
+    /**
+     * Resolves variable names, creating each variable on first use.
+     */
+    static class Variables implements ConstraintParser.CassowaryVariableResolver {
+
+        private final Map<String, Variable> variables = new HashMap<>();
+
+        @Override
+        public Variable resolveVariable(String variableName) {
+            Variable variable = variables.get(variableName);
+            if (variable == null) {
+                variable = new Variable(variableName);
+                variables.put(variableName, variable);
+            }
+            return variable;
+        }
+
+        @Override
+        public Expression resolveConstant(String name) {
+            try {
+                return new Expression(Double.parseDouble(name));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
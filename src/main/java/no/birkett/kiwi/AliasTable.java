@@ -0,0 +1,153 @@
+package no.birkett.kiwi;
+
+import java.util.Collection;
+
+/**
+ * Variables which the presolve has eliminated from the tableau.
+ * <p/>
+ * Each aliased variable is an affine function of a root variable which
+ * is not itself aliased, or a constant when it has no root. Aliases are
+ * always resolved to their root when they are created, so the table is a
+ * union-find structure whose paths are fully compressed and lookups never
+ * follow a chain.
+ * <p/>
+ * A forked table shares its maps, and the sets of dependents in them, with
+ * the table it was forked from until either table changes them.
+ */
+class AliasTable {
+
+    static class Alias {
+        final Constraint constraint;
+        final Variable variable;
+        final Variable root;
+        final double scale;
+        final double offset;
+
+        /**
+         * When the alias was added to the table, relative to the others.
+         */
+        long sequence;
+
+        Alias(Constraint constraint, Variable variable, Variable root, double scale, double offset) {
+            this.constraint = constraint;
+            this.variable = variable;
+            this.root = root;
+            this.scale = scale;
+            this.offset = offset;
+        }
+
+        /**
+         * Whether the alias maps its variable the same way as another.
+         */
+        boolean sameAs(Alias other) {
+            return other != null && root == other.root && scale == other.scale && offset == other.offset;
+        }
+    }
+
+    private CopyOnWriteMap<Variable, Alias> byVariable;
+    private CopyOnWriteMap<Constraint, Alias> byConstraint;
+    private CopyOnWriteMap<Variable, OwnedSet<Alias>> byRoot;
+    private long added;
+    private Object owner = new Object();
+
+    AliasTable(Journal journal) {
+        byVariable = new CopyOnWriteMap<Variable, Alias>(journal);
+        byConstraint = new CopyOnWriteMap<Constraint, Alias>(journal);
+        byRoot = new CopyOnWriteMap<Variable, OwnedSet<Alias>>(journal);
+    }
+
+    private AliasTable() {
+    }
+
+    boolean isEmpty() {
+        return byVariable.isEmpty();
+    }
+
+    Alias get(Variable variable) {
+        return byVariable.get(variable);
+    }
+
+    boolean contains(Constraint constraint) {
+        return byConstraint.containsKey(constraint);
+    }
+
+    /**
+     * The alias created from the given constraint, or null if there is none.
+     */
+    Alias get(Constraint constraint) {
+        return byConstraint.get(constraint);
+    }
+
+    Collection<Alias> aliases() {
+        return byConstraint.values();
+    }
+
+    /**
+     * The aliases whose root is the given variable, or null if there are none.
+     */
+    Collection<Alias> dependents(Variable root) {
+        return byRoot.get(root);
+    }
+
+    void add(Alias alias) {
+        alias.sequence = added++;
+        byVariable.put(alias.variable, alias);
+        byConstraint.put(alias.constraint, alias);
+        if (alias.root != null) {
+            writableDependents(alias.root).add(alias);
+        }
+    }
+
+    void remove(Alias alias) {
+        byVariable.remove(alias.variable);
+        byConstraint.remove(alias.constraint);
+        if (alias.root != null) {
+            OwnedSet<Alias> dependents = writableDependents(alias.root);
+            dependents.remove(alias);
+            if (dependents.isEmpty()) {
+                byRoot.remove(alias.root);
+            }
+        }
+    }
+
+    /**
+     * Create a table holding the same aliases as this one. The maps are
+     * shared until either table changes them.
+     */
+    AliasTable fork(Journal journal) {
+        AliasTable fork = new AliasTable();
+        fork.byVariable = byVariable.fork(journal);
+        fork.byConstraint = byConstraint.fork(journal);
+        fork.byRoot = byRoot.fork(journal);
+        fork.added = added;
+        owner = new Object();
+        return fork;
+    }
+
+    /**
+     * Stop changing the current maps and sets in place, so that they keep
+     * the aliases they hold now.
+     */
+    void renew() {
+        byVariable.renew();
+        byConstraint.renew();
+        byRoot.renew();
+        owner = new Object();
+    }
+
+    /**
+     * The dependents of a root, copied first if they are shared with a
+     * fork, or a new set if there are none.
+     */
+    private OwnedSet<Alias> writableDependents(Variable root) {
+        OwnedSet<Alias> dependents = byRoot.get(root);
+        if (dependents == null) {
+            dependents = new OwnedSet<Alias>(owner);
+            byRoot.put(root, dependents);
+        } else if (dependents.owner != owner) {
+            dependents = new OwnedSet<Alias>(owner, dependents);
+            byRoot.put(root, dependents);
+        }
+        return dependents;
+    }
+}
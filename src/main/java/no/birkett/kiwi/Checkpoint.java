@@ -0,0 +1,41 @@
+package no.birkett.kiwi;
+
+/**
+ * A point in the history of a solver it can be rolled back to.
+ * <p/>
+ * While a checkpoint is held, the solver records in a journal what it
+ * replaces, so each change costs a little more and the journal grows with
+ * the changes. Release checkpoints which are no longer needed.
+ */
+public final class Checkpoint {
+
+    final Solver solver;
+
+    /**
+     * The length of the journal when the checkpoint was taken.
+     */
+    final int position;
+
+    /*
+     * The arrays, objective and counts the solver held when the checkpoint
+     * was taken. The slots written since are put back from the journal.
+     */
+    final Row[] rows;
+    final Row objective;
+    final Variable[] variablesById;
+    final int[] freeSymbolIds;
+    final int freeSymbolCount;
+    final int symbolCount;
+
+    Checkpoint(Solver solver, int position, Row[] rows, Row objective, Variable[] variablesById,
+               int[] freeSymbolIds, int freeSymbolCount, int symbolCount) {
+        this.solver = solver;
+        this.position = position;
+        this.rows = rows;
+        this.objective = objective;
+        this.variablesById = variablesById;
+        this.freeSymbolIds = freeSymbolIds;
+        this.freeSymbolCount = freeSymbolCount;
+        this.symbolCount = symbolCount;
+    }
+}
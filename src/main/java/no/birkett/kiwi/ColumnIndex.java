@@ -0,0 +1,264 @@
+package no.birkett.kiwi;
+
+import java.util.Arrays;
+
+/**
+ * Maps each symbol to the set of tableau rows which contain it.
+ * <p/>
+ * Rows register themselves when they are attached to the index and keep
+ * it up to date as cells are inserted and removed, so the solver can
+ * visit only the rows affected by a symbol instead of scanning the whole
+ * tableau.
+ * <p/>
+ * A forked index shares its row sets with the index it was forked from,
+ * and either index copies a shared set before changing it. While the
+ * solver holds a checkpoint, the sets it replaces are recorded in the
+ * solver's journal.
+ */
+class ColumnIndex {
+
+    private static final RowSet EMPTY = new RowSet(null);
+
+    private RowSet[] columns = new RowSet[16];
+
+    private int rowCount;
+
+    private Object owner = new Object();
+
+    private final Journal journal;
+
+    /**
+     * Whether the array of sets has been recorded in the journal since the
+     * owner was renewed.
+     */
+    private boolean recorded;
+
+    ColumnIndex(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Create an index holding the same rows as this one. The row sets
+     * are shared until either index changes them.
+     */
+    ColumnIndex fork(Journal journal) {
+        ColumnIndex fork = new ColumnIndex(journal);
+        fork.columns = columns.clone();
+        fork.rowCount = rowCount;
+        renew();
+        return fork;
+    }
+
+    /**
+     * Stop changing the current row sets in place, so that they keep the
+     * rows they hold now.
+     */
+    void renew() {
+        owner = new Object();
+        recorded = false;
+    }
+
+    /**
+     * Get the rows which contain the given symbol.
+     * <p/>
+     * The returned set is live. It is safe to remove the current row while
+     * iterating from the last index down to zero.
+     */
+    RowSet get(Symbol symbol) {
+        int id = symbol.getId();
+        if (id < 0 || id >= columns.length || columns[id] == null) {
+            return EMPTY;
+        }
+        return columns[id];
+    }
+
+    void add(Symbol symbol, Row row) {
+        record();
+        int id = symbol.getId();
+        if (id >= columns.length) {
+            columns = Arrays.copyOf(columns, Math.max(columns.length * 2, id + 1));
+        }
+        RowSet column = columns[id];
+        if (column == null) {
+            journal.slot(columns, id);
+            column = new RowSet(owner);
+            columns[id] = column;
+        } else {
+            column = writable(id);
+        }
+        if (row.indexKey < 0) {
+            row.indexKey = rowCount++;
+        }
+        column.add(row);
+    }
+
+    void remove(Symbol symbol, Row row) {
+        int id = symbol.getId();
+        if (id < columns.length && columns[id] != null) {
+            record();
+            writable(id).remove(row);
+        }
+    }
+
+    /**
+     * Put a row in the place of another with the same index key.
+     */
+    void replace(Symbol symbol, Row original, Row row) {
+        record();
+        writable(symbol.getId()).replace(original, row);
+    }
+
+    private RowSet writable(int id) {
+        RowSet column = columns[id];
+        if (column.owner != owner) {
+            journal.slot(columns, id);
+            column = column.copy(owner);
+            columns[id] = column;
+        }
+        return column;
+    }
+
+    /**
+     * Record the array of sets before the first change since the owner was
+     * renewed, while the solver holds a checkpoint.
+     */
+    private void record() {
+        if (!recorded && journal.isRecording()) {
+            final RowSet[] previous = columns;
+            journal.add(new Journal.Entry() {
+                @Override
+                void undo() {
+                    columns = previous;
+                }
+            });
+            recorded = true;
+        }
+    }
+
+    /**
+     * A set of rows stored densely for iteration, with an open addressing
+     * table keyed by the row's index key for constant time removal.
+     */
+    static class RowSet {
+
+        private final Object owner;
+
+        private Row[] rows = new Row[2];
+        private int size;
+
+        /**
+         * Each slot holds the dense index of a row plus one, zero marks an empty slot.
+         */
+        private int[] slots = new int[4];
+
+        RowSet(Object owner) {
+            this.owner = owner;
+        }
+
+        RowSet copy(Object owner) {
+            RowSet copy = new RowSet(owner);
+            copy.rows = rows.clone();
+            copy.size = size;
+            copy.slots = slots.clone();
+            return copy;
+        }
+
+        int size() {
+            return size;
+        }
+
+        Row get(int index) {
+            return rows[index];
+        }
+
+        void add(Row row) {
+            if (indexOf(row) >= 0) {
+                return;
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+                slots = new int[size * 4];
+                for (int i = 0; i < size; i++) {
+                    slots[freeSlot(rows[i])] = i + 1;
+                }
+            }
+            rows[size] = row;
+            slots[freeSlot(row)] = size + 1;
+            size++;
+        }
+
+        void replace(Row original, Row row) {
+            rows[indexOf(original)] = row;
+        }
+
+        void remove(Row row) {
+            int index = indexOf(row);
+            if (index < 0) {
+                return;
+            }
+            deleteSlot(slotOf(index));
+
+            int last = size - 1;
+            if (index != last) {
+                slots[slotOf(last)] = index + 1;
+                rows[index] = rows[last];
+            }
+            rows[last] = null;
+            size = last;
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private int indexOf(Row row) {
+            int mask = slots.length - 1;
+            int slot = hash(row.indexKey) & mask;
+            while (true) {
+                int entry = slots[slot];
+                if (entry == 0) {
+                    return -1;
+                }
+                if (rows[entry - 1] == row) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private int slotOf(int index) {
+            int mask = slots.length - 1;
+            int slot = hash(rows[index].indexKey) & mask;
+            while (slots[slot] != index + 1) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private int freeSlot(Row row) {
+            int mask = slots.length - 1;
+            int slot = hash(row.indexKey) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void deleteSlot(int slot) {
+            int mask = slots.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (slots[next] != 0) {
+                int home = hash(rows[slots[next] - 1].indexKey) & mask;
+                boolean reachable = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+                if (!reachable) {
+                    slots[hole] = slots[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            slots[hole] = 0;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package no.birkett.kiwi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Solver} which may be shared between threads.
+ * <p/>
+ * Changes are not applied by the calling thread directly. They are put on
+ * a queue, and whichever thread finds the solver idle becomes the writer
+ * and applies everything queued, its own change and those of the other
+ * threads, before updating the variables once. Consecutive suggestions
+ * are applied with a single {@link Solver#suggestValues} and consecutive
+ * constraints with a single {@link Solver#addConstraints}. A thread which
+ * finds another writer at work returns straight away, leaving its change
+ * for that writer.
+ * <p/>
+ * Every change returns a future which completes once the change has been
+ * applied and the variables updated. A failure, such as an unsatisfiable
+ * constraint, is reported through the future as the cause of an
+ * {@link ExecutionException}. The queue is not bounded, so a thread which
+ * keeps changing the solver should wait on its futures now and then.
+ * <p/>
+ * Readers never wait for the writer. {@link #getSnapshot()} gives the
+ * values of the last update, all from the same update, and is the way for
+ * other threads to read them. Variable values are written by the writer
+ * without locking, so a thread may only read them directly once a future
+ * for the update has completed. hasConstraint and hasEditVariable show
+ * the changes applied so far.
+ */
+public class ConcurrentSolver {
+
+    /**
+     * A queued change, which is also the future the caller waits on.
+     */
+    private static class Command implements Future<Void> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        // Written by the writer before it counts down the latch, which
+        // publishes it to the threads waiting on the latch.
+        private Throwable failure;
+
+        void fail(Throwable failure) {
+            this.failure = failure;
+        }
+
+        void complete() {
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private Void report() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A change which is applied on its own.
+     */
+    private static abstract class Change extends Command {
+        abstract void apply(Solver solver) throws KiwiException, UnknownEditVariableException;
+    }
+
+    /**
+     * Constraints to add, applied in runs.
+     */
+    private static class AddCommand extends Command {
+        final Constraint constraint;
+
+        AddCommand(Constraint constraint) {
+            this.constraint = constraint;
+        }
+    }
+
+    /**
+     * Suggested values, applied in runs.
+     */
+    private static class SuggestCommand extends Command {
+        final Variable variable;
+        final double value;
+
+        SuggestCommand(Variable variable, double value) {
+            this.variable = variable;
+            this.value = value;
+        }
+    }
+
+    private final Solver solver;
+    private final ConcurrentLinkedQueue<Command> pending = new ConcurrentLinkedQueue<Command>();
+    private final ReentrantLock writer = new ReentrantLock();
+    private final Set<Constraint> constraints = Collections.newSetFromMap(new ConcurrentHashMap<Constraint, Boolean>());
+    private final Set<Variable> editVariables = Collections.newSetFromMap(new ConcurrentHashMap<Variable, Boolean>());
+
+    public ConcurrentSolver() {
+        this(new Solver());
+    }
+
+    /**
+     * Share the given solver. It must not be used directly any more.
+     */
+    public ConcurrentSolver(Solver solver) {
+        this.solver = solver;
+        solver.setPublishSnapshots(true);
+    }
+
+    public Future<Void> addConstraint(Constraint constraint) {
+        return submit(new AddCommand(constraint));
+    }
+
+    /**
+     * Add several constraints. They are queued one by one, and each has its
+     * own future, in the order of the collection.
+     */
+    public List<Future<Void>> addConstraints(Collection<Constraint> constraints) {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(constraints.size());
+        for (Constraint constraint : constraints) {
+            Command command = new AddCommand(constraint);
+            futures.add(command);
+            pending.add(command);
+        }
+        drain();
+        return futures;
+    }
+
+    public Future<Void> removeConstraint(final Constraint constraint) {
+        return submit(new Change() {
+            @Override
+            void apply(Solver solver) throws KiwiException, UnknownEditVariableException {
+                solver.removeConstraint(constraint);
+                constraints.remove(constraint);
+            }
+        });
+    }
+
+    public Future<Void> updateConstant(final Constraint constraint, final double constant) {
+        return submit(new Change() {
+            @Override
+            void apply(Solver solver) throws KiwiException, UnknownEditVariableException {
+                solver.updateConstant(constraint, constant);
+            }
+        });
+    }
+
+    public Future<Void> addEditVariable(final Variable variable, final double strength) {
+        return submit(new Change() {
+            @Override
+            void apply(Solver solver) throws KiwiException, UnknownEditVariableException {
+                solver.addEditVariable(variable, strength);
+                editVariables.add(variable);
+            }
+        });
+    }
+
+    public Future<Void> removeEditVariable(final Variable variable) {
+        return submit(new Change() {
+            @Override
+            void apply(Solver solver) throws KiwiException, UnknownEditVariableException {
+                solver.removeEditVariable(variable);
+                editVariables.remove(variable);
+            }
+        });
+    }
+
+    public Future<Void> suggestValue(Variable variable, double value) {
+        return submit(new SuggestCommand(variable, value));
+    }
+
+    /**
+     * @return A future which completes once every change queued before it
+     * has been applied.
+     */
+    public Future<Void> flush() {
+        return submit(new Change() {
+            @Override
+            void apply(Solver solver) {
+            }
+        });
+    }
+
+    /**
+     * The values of the variables as of the last update.
+     */
+    public ValueSnapshot getSnapshot() {
+        return solver.getSnapshot();
+    }
+
+    public boolean hasConstraint(Constraint constraint) {
+        return constraints.contains(constraint);
+    }
+
+    public boolean hasEditVariable(Variable variable) {
+        return editVariables.contains(variable);
+    }
+
+    private Future<Void> submit(Command command) {
+        pending.add(command);
+        drain();
+        return command;
+    }
+
+    /**
+     * Apply the queued changes, unless another thread is already doing so.
+     * <p/>
+     * The queue is checked again after letting go of the writer lock, as a
+     * change queued just before the writer let go would otherwise be left
+     * until the next change.
+     */
+    private void drain() {
+        while (!pending.isEmpty() && writer.tryLock()) {
+            List<Command> taken = new ArrayList<Command>();
+            try {
+                Command command = pending.poll();
+                while (command != null) {
+                    if (command instanceof AddCommand) {
+                        List<AddCommand> run = new ArrayList<AddCommand>();
+                        while (command instanceof AddCommand) {
+                            run.add((AddCommand) command);
+                            taken.add(command);
+                            command = pending.poll();
+                        }
+                        applyAdds(run);
+                    } else if (command instanceof SuggestCommand) {
+                        List<SuggestCommand> run = new ArrayList<SuggestCommand>();
+                        while (command instanceof SuggestCommand) {
+                            run.add((SuggestCommand) command);
+                            taken.add(command);
+                            command = pending.poll();
+                        }
+                        applySuggestions(run);
+                    } else {
+                        taken.add(command);
+                        try {
+                            ((Change) command).apply(solver);
+                        } catch (KiwiException e) {
+                            command.fail(e);
+                        } catch (UnknownEditVariableException e) {
+                            command.fail(e);
+                        }
+                        command = pending.poll();
+                    }
+                }
+                solver.updateVariables();
+            } catch (Throwable e) {
+                // Fail everything taken rather than report success, as the
+                // state of the solver is unknown. This includes errors such
+                // as InternalSolverError.
+                for (Command command : taken) {
+                    command.fail(e);
+                }
+                throw e;
+            } finally {
+                writer.unlock();
+                for (Command command : taken) {
+                    command.complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a run of constraints with one call to addConstraints. When a
+     * constraint fails, the ones before it are in the solver and the ones
+     * after it are added again without it.
+     */
+    private void applyAdds(List<AddCommand> run) {
+        List<AddCommand> remaining = new ArrayList<AddCommand>(run.size());
+        List<Constraint> adding = new ArrayList<Constraint>(run.size());
+        Set<Constraint> seen = new HashSet<Constraint>();
+        for (AddCommand command : run) {
+            if (solver.hasConstraint(command.constraint) || !seen.add(command.constraint)) {
+                // Reported here, so the run cannot fail on it.
+                command.fail(new DuplicateConstraintException(command.constraint));
+            } else {
+                remaining.add(command);
+                adding.add(command.constraint);
+            }
+        }
+
+        while (!remaining.isEmpty()) {
+            KiwiException failure = null;
+            try {
+                solver.addConstraints(adding);
+            } catch (KiwiException e) {
+                failure = e;
+            }
+
+            int i = 0;
+            while (i < remaining.size()) {
+                AddCommand command = remaining.get(i++);
+                if (failure != null && !solver.hasConstraint(command.constraint)) {
+                    command.fail(failure);
+                    break;
+                }
+                constraints.add(command.constraint);
+            }
+            remaining = remaining.subList(i, remaining.size());
+            adding = adding.subList(i, adding.size());
+        }
+    }
+
+    /**
+     * Apply a run of suggestions with one call to suggestValues. Unknown
+     * edit variables are reported first, as suggestValues would reject
+     * the whole run for them.
+     */
+    private void applySuggestions(List<SuggestCommand> run) {
+        List<SuggestCommand> known = new ArrayList<SuggestCommand>(run.size());
+        for (SuggestCommand command : run) {
+            if (solver.hasEditVariable(command.variable)) {
+                known.add(command);
+            } else {
+                command.fail(new UnknownEditVariableException());
+            }
+        }
+
+        Variable[] variables = new Variable[known.size()];
+        double[] values = new double[known.size()];
+        for (int i = 0; i < variables.length; i++) {
+            variables[i] = known.get(i).variable;
+            values[i] = known.get(i).value;
+        }
+        try {
+            solver.suggestValues(variables, values);
+        } catch (UnknownEditVariableException e) {
+            throw new InternalSolverError("edit variable disappeared");
+        }
+    }
+}
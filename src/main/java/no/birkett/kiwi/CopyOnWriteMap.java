@@ -0,0 +1,324 @@
+package no.birkett.kiwi;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A hash map which keeps its entries in small buckets, so that it can be
+ * shared with the map of a forked solver.
+ * <p/>
+ * A forked map shares its buckets with the map it was forked from, and
+ * either map copies a shared bucket before changing it, the same way
+ * ColumnIndex shares its row sets. A fork costs the array of buckets,
+ * which holds several entries per bucket, and each change copies at most
+ * one bucket.
+ * <p/>
+ * While the solver holds a checkpoint, the map records the buckets it
+ * replaces, and its bucket array and size before its first change, in the
+ * solver's journal.
+ * <p/>
+ * The iteration order is unspecified, and the views do not support
+ * removal.
+ */
+class CopyOnWriteMap<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * The number of entries per bucket at which the bucket array doubles.
+     */
+    private static final int LOAD = 4;
+
+    private Bucket[] buckets = new Bucket[4];
+
+    private int size;
+
+    private Object owner = new Object();
+
+    private final Journal journal;
+
+    /**
+     * Whether the bucket array and size have been recorded in the journal
+     * since the owner was renewed.
+     */
+    private boolean recorded;
+
+    CopyOnWriteMap(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Create a map holding the same entries as this one. The buckets are
+     * shared until either map changes them.
+     */
+    CopyOnWriteMap<K, V> fork(Journal journal) {
+        CopyOnWriteMap<K, V> fork = new CopyOnWriteMap<K, V>(journal);
+        fork.buckets = buckets.clone();
+        fork.size = size;
+        renew();
+        return fork;
+    }
+
+    /**
+     * Stop changing the current buckets in place, so that they keep the
+     * entries they hold now.
+     */
+    void renew() {
+        owner = new Object();
+        recorded = false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Bucket bucket = buckets[indexFor(key)];
+        return bucket != null && bucket.indexOf(key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Bucket bucket = buckets[indexFor(key)];
+        if (bucket == null) {
+            return null;
+        }
+        int index = bucket.indexOf(key);
+        return index < 0 ? null : (V) bucket.values[index];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        record();
+        Bucket bucket = writable(indexFor(key));
+        int index = bucket.indexOf(key);
+        if (index >= 0) {
+            V previous = (V) bucket.values[index];
+            bucket.values[index] = value;
+            return previous;
+        }
+        bucket.add(key, value);
+        if (++size > buckets.length * LOAD) {
+            grow();
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        int slot = indexFor(key);
+        Bucket bucket = buckets[slot];
+        if (bucket == null || bucket.indexOf(key) < 0) {
+            return null;
+        }
+        record();
+        bucket = writable(slot);
+        int index = bucket.indexOf(key);
+        V previous = (V) bucket.values[index];
+        bucket.removeAt(index);
+        size--;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        record();
+        buckets = new Bucket[4];
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int indexFor(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (buckets.length - 1);
+    }
+
+    /**
+     * Record the bucket array and size before the first change since the
+     * owner was renewed, while the solver holds a checkpoint.
+     */
+    private void record() {
+        if (!recorded && journal.isRecording()) {
+            journal.add(new StateEntry(buckets, size));
+            recorded = true;
+        }
+    }
+
+    private Bucket writable(int slot) {
+        Bucket bucket = buckets[slot];
+        if (bucket == null || bucket.owner != owner) {
+            journal.slot(buckets, slot);
+        }
+        if (bucket == null) {
+            bucket = new Bucket(owner, 2);
+            buckets[slot] = bucket;
+        } else if (bucket.owner != owner) {
+            bucket = bucket.copy(owner);
+            buckets[slot] = bucket;
+        }
+        return bucket;
+    }
+
+    /**
+     * Spread the entries over twice as many buckets. Every bucket is
+     * rebuilt, so none of them is shared afterwards, and the old array is
+     * left as it was.
+     */
+    private void grow() {
+        Bucket[] old = buckets;
+        buckets = new Bucket[old.length * 2];
+        for (Bucket bucket : old) {
+            if (bucket == null) {
+                continue;
+            }
+            for (int i = 0; i < bucket.count; i++) {
+                int slot = indexFor(bucket.keys[i]);
+                if (buckets[slot] == null) {
+                    buckets[slot] = new Bucket(owner, 2);
+                }
+                buckets[slot].add(bucket.keys[i], bucket.values[i]);
+            }
+        }
+    }
+
+    private class StateEntry extends Journal.Entry {
+
+        private final Bucket[] buckets;
+        private final int size;
+
+        StateEntry(Bucket[] buckets, int size) {
+            this.buckets = buckets;
+            this.size = size;
+        }
+
+        @Override
+        void undo() {
+            CopyOnWriteMap.this.buckets = buckets;
+            CopyOnWriteMap.this.size = size;
+        }
+    }
+
+    /**
+     * The entries whose keys hash to one slot, stored densely.
+     */
+    private static class Bucket {
+
+        private final Object owner;
+
+        private Object[] keys;
+        private Object[] values;
+        private int count;
+
+        Bucket(Object owner, int capacity) {
+            this.owner = owner;
+            keys = new Object[capacity];
+            values = new Object[capacity];
+        }
+
+        Bucket copy(Object owner) {
+            Bucket copy = new Bucket(owner, Math.max(count, 2));
+            System.arraycopy(keys, 0, copy.keys, 0, count);
+            System.arraycopy(values, 0, copy.values, 0, count);
+            copy.count = count;
+            return copy;
+        }
+
+        int indexOf(Object key) {
+            for (int i = 0; i < count; i++) {
+                if (keys[i] == key || keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(Object key, Object value) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            keys[count] = key;
+            values[count] = value;
+            count++;
+        }
+
+        void removeAt(int index) {
+            int last = count - 1;
+            keys[index] = keys[last];
+            values[index] = values[last];
+            keys[last] = null;
+            values[last] = null;
+            count = last;
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private int slot;
+        private int index;
+
+        EntryIterator() {
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return slot < buckets.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Bucket bucket = buckets[slot];
+            Map.Entry<K, V> entry = new SimpleImmutableEntry<K, V>((K) bucket.keys[index], (V) bucket.values[index]);
+            index++;
+            advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Move to the next occupied position, starting at the current one.
+         */
+        private void advance() {
+            while (slot < buckets.length && (buckets[slot] == null || index >= buckets[slot].count)) {
+                slot++;
+                index = 0;
+            }
+        }
+    }
+}
@@ -10,4 +10,8 @@ public class DuplicateConstraintException extends KiwiException {
     public DuplicateConstraintException(Constraint constraint) {
         this.constraint = constraint;
     }
+
+    public Constraint getConstraint() {
+        return constraint;
+    }
 }
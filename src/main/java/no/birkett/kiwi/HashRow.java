@@ -0,0 +1,236 @@
+package no.birkett.kiwi;
+
+import java.util.Arrays;
+
+/**
+ * A row which keeps its cells in a primitive open addressing map keyed by
+ * symbol id.
+ * <p/>
+ * Cells are stored densely in parallel arrays and found through a linear
+ * probing table, so lookups and updates are constant time regardless of
+ * the row size. Removing a cell moves the last cell into its place.
+ */
+class HashRow extends Row {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The cells of the row, stored densely in iteration order.
+     */
+    private Symbol[] symbols;
+    private double[] coefficients;
+    private int size;
+
+    /**
+     * Open addressing table keyed by symbol id. Each slot holds the index
+     * of the cell in the dense arrays plus one, zero marks an empty slot.
+     */
+    private int[] slots;
+
+    HashRow(double constant) {
+        super(constant);
+        this.symbols = new Symbol[INITIAL_CAPACITY];
+        this.coefficients = new double[INITIAL_CAPACITY];
+        this.slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    private HashRow(HashRow other) {
+        super(other.getConstant());
+        this.symbols = Arrays.copyOf(other.symbols, other.symbols.length);
+        this.coefficients = Arrays.copyOf(other.coefficients, other.coefficients.length);
+        this.slots = Arrays.copyOf(other.slots, other.slots.length);
+        this.size = other.size;
+    }
+
+    @Override
+    Row copy() {
+        return new HashRow(this);
+    }
+
+    @Override
+    int cellCount() {
+        return size;
+    }
+
+    @Override
+    Symbol symbolAt(int index) {
+        return symbols[index];
+    }
+
+    @Override
+    double coefficientAt(int index) {
+        return coefficients[index];
+    }
+
+    @Override
+    void insert(Symbol symbol, double coefficient) {
+        int index = indexOf(symbol);
+
+        if (index >= 0) {
+            coefficient += coefficients[index];
+            if (Util.nearZero(coefficient)) {
+                removeAt(index);
+            } else {
+                coefficients[index] = coefficient;
+            }
+        } else if (!Util.nearZero(coefficient)) {
+            append(symbol, coefficient);
+        }
+    }
+
+    @Override
+    void insert(Row other, double coefficient) {
+        add(other.getConstant() * coefficient);
+
+        for (int i = 0; i < other.cellCount(); i++) {
+            insert(other.symbolAt(i), other.coefficientAt(i) * coefficient);
+        }
+    }
+
+    @Override
+    void remove(Symbol symbol) {
+        int index = indexOf(symbol);
+        if (index >= 0) {
+            removeAt(index);
+        }
+    }
+
+    @Override
+    void reverseSign() {
+        setConstant(-getConstant());
+
+        for (int i = 0; i < size; i++) {
+            coefficients[i] = -coefficients[i];
+        }
+    }
+
+    @Override
+    void solveFor(Symbol symbol) {
+        int index = indexOf(symbol);
+        double coeff = -1.0 / coefficients[index];
+        removeAt(index);
+        setConstant(getConstant() * coeff);
+
+        for (int i = 0; i < size; i++) {
+            coefficients[i] *= coeff;
+        }
+    }
+
+    @Override
+    double coefficientFor(Symbol symbol) {
+        int index = indexOf(symbol);
+        return index >= 0 ? coefficients[index] : 0.0;
+    }
+
+    @Override
+    void substitute(Symbol symbol, Row row) {
+        int index = indexOf(symbol);
+        if (index >= 0) {
+            double coefficient = coefficients[index];
+            removeAt(index);
+            insert(row, coefficient);
+        }
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find the dense index of the given symbol, or -1 if it is not in the row.
+     */
+    private int indexOf(Symbol symbol) {
+        int mask = slots.length - 1;
+        int slot = hash(symbol.getId()) & mask;
+        while (true) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (symbols[entry - 1] == symbol) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Find the table slot which points at the given dense index.
+     */
+    private int slotOf(int index) {
+        int mask = slots.length - 1;
+        int slot = hash(symbols[index].getId()) & mask;
+        while (slots[slot] != index + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void append(Symbol symbol, double coefficient) {
+        if (size == symbols.length) {
+            int capacity = size * 2;
+            symbols = Arrays.copyOf(symbols, capacity);
+            coefficients = Arrays.copyOf(coefficients, capacity);
+            slots = new int[capacity * 2];
+            for (int i = 0; i < size; i++) {
+                slots[freeSlot(symbols[i])] = i + 1;
+            }
+        }
+        symbols[size] = symbol;
+        coefficients[size] = coefficient;
+        slots[freeSlot(symbol)] = size + 1;
+        size++;
+
+        cellAdded(symbol);
+    }
+
+    private int freeSlot(Symbol symbol) {
+        int mask = slots.length - 1;
+        int slot = hash(symbol.getId()) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Remove the cell at the given dense index. The last cell is moved
+     * into the hole so the dense arrays stay packed.
+     */
+    private void removeAt(int index) {
+        cellRemoved(symbols[index]);
+        deleteSlot(slotOf(index));
+
+        int last = size - 1;
+        if (index != last) {
+            slots[slotOf(last)] = index + 1;
+            symbols[index] = symbols[last];
+            coefficients[index] = coefficients[last];
+        }
+        symbols[last] = null;
+        size = last;
+    }
+
+    /**
+     * Clear a table slot, shifting back any entries of the same probe
+     * sequence so lookups never stop early at the hole.
+     */
+    private void deleteSlot(int slot) {
+        int mask = slots.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (slots[next] != 0) {
+            int home = hash(symbols[slots[next] - 1].getId()) & mask;
+            // Move the entry into the hole unless its home lies cyclically in (hole, next]
+            boolean reachable = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!reachable) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = 0;
+    }
+
+}
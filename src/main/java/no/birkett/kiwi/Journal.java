@@ -0,0 +1,129 @@
+package no.birkett.kiwi;
+
+import java.util.Arrays;
+
+/**
+ * The changes a solver has made since its oldest live checkpoint, kept so
+ * that they can be undone in reverse order.
+ * <p/>
+ * Taking a checkpoint renews the owner tokens of the solver and its
+ * structures, so nothing that existed at the checkpoint is changed in
+ * place afterwards. Each structure records the value of a slot before it
+ * first puts a new piece there, and its own fields before it first changes
+ * them, so undoing the entries back to the position of a checkpoint puts
+ * back the references the solver held when it was taken. Nothing is
+ * recorded while there are no live checkpoints.
+ */
+class Journal {
+
+    /**
+     * A change which can be undone.
+     */
+    abstract static class Entry {
+
+        abstract void undo();
+    }
+
+    private Entry[] entries = new Entry[16];
+
+    private int size;
+
+    private boolean recording;
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    void setRecording(boolean recording) {
+        this.recording = recording;
+        if (!recording) {
+            clear();
+        }
+    }
+
+    /**
+     * The number of entries recorded.
+     */
+    int position() {
+        return size;
+    }
+
+    void add(Entry entry) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        entries[size++] = entry;
+    }
+
+    /**
+     * Record the value of an array slot, if recording.
+     */
+    void slot(Object[] array, int index) {
+        if (recording) {
+            add(new SlotEntry(array, index, array[index]));
+        }
+    }
+
+    /**
+     * Record the value of an int array slot, if recording.
+     */
+    void slot(int[] array, int index) {
+        if (recording) {
+            add(new IntSlotEntry(array, index, array[index]));
+        }
+    }
+
+    /**
+     * Undo the entries after the given position, last first, and forget them.
+     */
+    void undo(int position) {
+        while (size > position) {
+            Entry entry = entries[--size];
+            entries[size] = null;
+            entry.undo();
+        }
+    }
+
+    private void clear() {
+        if (size > 0) {
+            entries = new Entry[16];
+            size = 0;
+        }
+    }
+
+    private static class SlotEntry extends Entry {
+
+        private final Object[] array;
+        private final int index;
+        private final Object value;
+
+        SlotEntry(Object[] array, int index, Object value) {
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        void undo() {
+            array[index] = value;
+        }
+    }
+
+    private static class IntSlotEntry extends Entry {
+
+        private final int[] array;
+        private final int index;
+        private final int value;
+
+        IntSlotEntry(int[] array, int index, int value) {
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        void undo() {
+            array[index] = value;
+        }
+    }
+}
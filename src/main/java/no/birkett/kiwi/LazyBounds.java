@@ -0,0 +1,86 @@
+package no.birkett.kiwi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Required single variable inequalities which are kept out of the
+ * tableau until the solution violates them.
+ * <p/>
+ * The maps are shared with forks until either side changes them. The
+ * list of bounds on a symbol is short, and is replaced rather than
+ * changed, so it can be shared as well.
+ */
+class LazyBounds {
+
+    private CopyOnWriteMap<Constraint, Symbol> symbols;
+    private CopyOnWriteMap<Symbol, List<Constraint>> bySymbol;
+
+    LazyBounds(Journal journal) {
+        symbols = new CopyOnWriteMap<Constraint, Symbol>(journal);
+        bySymbol = new CopyOnWriteMap<Symbol, List<Constraint>>(journal);
+    }
+
+    private LazyBounds() {
+    }
+
+    LazyBounds fork(Journal journal) {
+        LazyBounds fork = new LazyBounds();
+        fork.symbols = symbols.fork(journal);
+        fork.bySymbol = bySymbol.fork(journal);
+        return fork;
+    }
+
+    /**
+     * Stop changing the current maps in place, so that they keep the
+     * bounds they hold now.
+     */
+    void renew() {
+        symbols.renew();
+        bySymbol.renew();
+    }
+
+    boolean isEmpty() {
+        return symbols.isEmpty();
+    }
+
+    boolean contains(Constraint constraint) {
+        return symbols.containsKey(constraint);
+    }
+
+    /**
+     * The bounds on the given symbol, or null if there are none. The list
+     * must not be changed.
+     */
+    List<Constraint> get(Symbol symbol) {
+        return bySymbol.get(symbol);
+    }
+
+    void add(Constraint constraint, Symbol symbol) {
+        symbols.put(constraint, symbol);
+        List<Constraint> bounds = bySymbol.get(symbol);
+        List<Constraint> added = new ArrayList<Constraint>(bounds == null ? 1 : bounds.size() + 1);
+        if (bounds != null) {
+            added.addAll(bounds);
+        }
+        added.add(constraint);
+        bySymbol.put(symbol, added);
+    }
+
+    /**
+     * @return The symbol the bound was on, or null if it was not held here.
+     */
+    Symbol remove(Constraint constraint) {
+        Symbol symbol = symbols.remove(constraint);
+        if (symbol != null) {
+            List<Constraint> bounds = new ArrayList<Constraint>(bySymbol.get(symbol));
+            bounds.remove(constraint);
+            if (bounds.isEmpty()) {
+                bySymbol.remove(symbol);
+            } else {
+                bySymbol.put(symbol, bounds);
+            }
+        }
+        return symbol;
+    }
+}
@@ -0,0 +1,24 @@
+package no.birkett.kiwi;
+
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * A hash set held as a value of a {@link CopyOnWriteMap}, which remembers
+ * the token of the structure that may change it in place. A set shared
+ * with a fork belongs to neither of them, and is copied and put back into
+ * the map before it is changed, like the rows of the tableau.
+ */
+class OwnedSet<E> extends HashSet<E> {
+
+    final Object owner;
+
+    OwnedSet(Object owner) {
+        this.owner = owner;
+    }
+
+    OwnedSet(Object owner, Collection<? extends E> elements) {
+        super(elements);
+        this.owner = owner;
+    }
+}
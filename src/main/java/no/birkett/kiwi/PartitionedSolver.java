@@ -0,0 +1,626 @@
+package no.birkett.kiwi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A solver for constraint systems made of independent parts.
+ * <p/>
+ * Variables which are connected through constraints or edits form a
+ * component, tracked with union-find, and every component has a tableau
+ * of its own in a separate {@link Solver}. Changes to one component never
+ * touch the rows of another, and batches of changes which span several
+ * components are solved concurrently on a {@link ForkJoinPool}.
+ * <p/>
+ * A constraint which bridges components merges them, by moving the
+ * constraints and edits of the smaller ones into the tableau of the
+ * largest. The constraint is added to a fork of that tableau first, so a
+ * constraint which cannot be added leaves the components as they were.
+ * Components are not split again when constraints are removed.
+ * <p/>
+ * Like {@link Solver}, this class is not safe for use from several
+ * threads at once. Its variables are written by the pool threads during
+ * updateVariables, and are visible to the caller once it returns.
+ */
+public class PartitionedSolver {
+
+    private static class Edit {
+        final double strength;
+        double value;
+
+        Edit(double strength) {
+            this.strength = strength;
+        }
+    }
+
+    private static class Component {
+        Component parent = this;
+        // Dropped once the component has been merged into another.
+        Solver solver;
+        Set<Constraint> constraints = new LinkedHashSet<Constraint>();
+        Map<Variable, Edit> edits = new LinkedHashMap<Variable, Edit>();
+
+        // The share of the current batch of suggestions.
+        Variable[] batchVariables;
+        double[] batchValues;
+        int batchSize;
+
+        Component(Solver solver) {
+            this.solver = solver;
+        }
+
+        int size() {
+            return constraints.size() + edits.size();
+        }
+    }
+
+    /**
+     * The constraints of a batch which connect the same components, and
+     * the solver they are added to.
+     */
+    private static class Share {
+        final List<Component> parts = new ArrayList<Component>();
+        final List<Constraint> constraints = new ArrayList<Constraint>();
+        Solver solver;
+    }
+
+    private final ForkJoinPool pool;
+    private final Map<Variable, Component> components = new HashMap<Variable, Component>();
+    private final Map<Constraint, Component> cns = new HashMap<Constraint, Component>();
+    private final Set<Component> roots = new LinkedHashSet<Component>();
+    private final Set<Component> dirty = new LinkedHashSet<Component>();
+
+    /**
+     * Create a solver which runs its batches on the given pool. The pool
+     * belongs to the caller, who may share it between solvers and shuts it
+     * down once they are no longer used.
+     */
+    public PartitionedSolver(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The number of independent components, each with its own tableau.
+     */
+    public int getComponentCount() {
+        return roots.size();
+    }
+
+    /**
+     * Add a constraint to the solver, merging the components of its
+     * variables if it connects several.
+     *
+     * @throws DuplicateConstraintException     The given constraint has already been added to the solver.
+     * @throws UnsatisfiableConstraintException The given constraint is required and cannot be satisfied.
+     */
+    public void addConstraint(Constraint constraint) throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        if (cns.containsKey(constraint)) {
+            throw new DuplicateConstraintException(constraint);
+        }
+
+        List<Component> parts = new ArrayList<Component>();
+        addRoots(constraint, parts);
+        Solver solver = solverFor(parts);
+        solver.addConstraint(constraint);
+        register(constraint, merge(parts, solver, Collections.singletonList(constraint)));
+    }
+
+    /**
+     * Add a batch of constraints to the solver.
+     * <p/>
+     * The batch is split by component, and each component adds its share
+     * with {@link Solver#addConstraints} concurrently with the others.
+     * <p/>
+     * If a constraint cannot be added, the other components still add
+     * their shares, and within its own component the constraints after it
+     * are not added. Components are only merged for the constraints which
+     * were added. If several components fail, the exception reports the
+     * offending constraint of the first of them.
+     *
+     * @throws DuplicateConstraintException     A constraint has already been added to the solver.
+     * @throws UnsatisfiableConstraintException A constraint is required and cannot be satisfied.
+     */
+    public void addConstraints(Collection<Constraint> constraints) throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        Set<Constraint> batch = new LinkedHashSet<Constraint>();
+        for (Constraint constraint : constraints) {
+            if (cns.containsKey(constraint) || !batch.add(constraint)) {
+                throw new DuplicateConstraintException(constraint);
+            }
+        }
+
+        // Group the batch by the components its constraints connect,
+        // without merging them yet. A variable which is in no component
+        // yet stands for itself.
+        Map<Object, Object> links = new HashMap<Object, Object>();
+        for (Constraint constraint : batch) {
+            for (Term term : constraint.getExpression().getTerms()) {
+                Variable variable = term.getVariable();
+                Component component = rootOf(variable);
+                link(links, constraint, component != null ? component : variable);
+            }
+        }
+        Map<Object, Share> grouped = new LinkedHashMap<Object, Share>();
+        for (Constraint constraint : batch) {
+            Object group = findLink(links, constraint);
+            Share share = grouped.get(group);
+            if (share == null) {
+                share = new Share();
+                grouped.put(group, share);
+            }
+            addRoots(constraint, share.parts);
+            share.constraints.add(constraint);
+        }
+
+        final List<Share> shares = new ArrayList<Share>(grouped.values());
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(shares.size());
+        for (final Share share : shares) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    share.solver = solverFor(share.parts);
+                    share.solver.addConstraints(share.constraints);
+                    return null;
+                }
+            });
+        }
+        Exception failure = runAll(tasks);
+
+        for (Share share : shares) {
+            if (share.solver == null) {
+                continue;
+            }
+            List<Constraint> added = new ArrayList<Constraint>(share.constraints.size());
+            for (Constraint constraint : share.constraints) {
+                if (share.solver.hasConstraint(constraint)) {
+                    added.add(constraint);
+                }
+            }
+            if (added.size() == share.constraints.size() || share.parts.size() == 1) {
+                // Either all were added, or the share went straight into
+                // the tableau of its only component.
+                if (!added.isEmpty()) {
+                    Component component = merge(share.parts, share.solver, added);
+                    for (Constraint constraint : added) {
+                        register(constraint, component);
+                    }
+                }
+            } else {
+                // The rejected constraint may be the one which bridges the
+                // components, so add the others one at a time, merging only
+                // the components they connect.
+                for (Constraint constraint : added) {
+                    try {
+                        addConstraint(constraint);
+                    } catch (KiwiException e) {
+                        throw new InternalSolverError("failed to add constraint: " + e);
+                    }
+                }
+            }
+        }
+        if (failure instanceof DuplicateConstraintException) {
+            throw (DuplicateConstraintException) failure;
+        }
+        if (failure instanceof UnsatisfiableConstraintException) {
+            throw (UnsatisfiableConstraintException) failure;
+        }
+        rethrowUnchecked(failure);
+    }
+
+    /**
+     * Remove a constraint from the solver.
+     *
+     * @throws UnknownConstraintException The given constraint has not been added to the solver.
+     */
+    public void removeConstraint(Constraint constraint) throws UnknownConstraintException {
+        Component component = cns.remove(constraint);
+        if (component == null) {
+            throw new UnknownConstraintException(constraint);
+        }
+        component = find(component);
+        component.constraints.remove(constraint);
+        component.solver.removeConstraint(constraint);
+        dirty.add(component);
+    }
+
+    /**
+     * Test whether a constraint has been added to the solver.
+     */
+    public boolean hasConstraint(Constraint constraint) {
+        return cns.containsKey(constraint);
+    }
+
+    /**
+     * Add an edit variable to the solver.
+     *
+     * @throws DuplicateEditVariableException The given edit variable has already been added to the solver.
+     * @throws RequiredFailureException       The given strength is >= required.
+     */
+    public void addEditVariable(Variable variable, double strength) throws DuplicateEditVariableException, RequiredFailureException {
+        Component component = componentFor(variable);
+        component.solver.addEditVariable(variable, strength);
+        component.edits.put(variable, new Edit(Strength.clip(strength)));
+        dirty.add(component);
+    }
+
+    /**
+     * Remove an edit variable from the solver.
+     *
+     * @throws UnknownEditVariableException The given edit variable has not been added to the solver.
+     */
+    public void removeEditVariable(Variable variable) throws UnknownEditVariableException {
+        Component component = editComponent(variable);
+        component.solver.removeEditVariable(variable);
+        component.edits.remove(variable);
+        dirty.add(component);
+    }
+
+    /**
+     * Test whether an edit variable has been added to the solver.
+     */
+    public boolean hasEditVariable(Variable variable) {
+        Component component = rootOf(variable);
+        return component != null && component.edits.containsKey(variable);
+    }
+
+    /**
+     * Suggest a value for the given edit variable.
+     *
+     * @throws UnknownEditVariableException The given edit variable has not been added to the solver.
+     */
+    public void suggestValue(Variable variable, double value) throws UnknownEditVariableException {
+        Component component = editComponent(variable);
+        component.solver.suggestValue(variable, value);
+        component.edits.get(variable).value = value;
+        dirty.add(component);
+    }
+
+    /**
+     * Suggest values for several edit variables at once.
+     * <p/>
+     * The suggestions are split by component, and each component applies
+     * its share with {@link Solver#suggestValues} concurrently with the
+     * others. If the same variable appears more than once, the last value
+     * wins.
+     *
+     * @throws UnknownEditVariableException One of the variables is not an edit variable.
+     *                                      No values are applied in this case.
+     */
+    public void suggestValues(Variable[] variables, double[] values) throws UnknownEditVariableException {
+        if (variables.length != values.length) {
+            throw new IllegalArgumentException("variables and values differ in length");
+        }
+
+        // Count the share of every component first, to size its arrays.
+        List<Component> touched = new ArrayList<Component>();
+        Component[] shares = new Component[variables.length];
+        Edit[] edits = new Edit[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            shares[i] = editComponent(variables[i]);
+            edits[i] = shares[i].edits.get(variables[i]);
+            if (shares[i].batchSize++ == 0) {
+                touched.add(shares[i]);
+            }
+        }
+        for (Component component : touched) {
+            component.batchVariables = new Variable[component.batchSize];
+            component.batchValues = new double[component.batchSize];
+            component.batchSize = 0;
+        }
+        for (int i = 0; i < variables.length; i++) {
+            Component component = shares[i];
+            component.batchVariables[component.batchSize] = variables[i];
+            component.batchValues[component.batchSize] = values[i];
+            component.batchSize++;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(touched.size());
+        for (final Component component : touched) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    component.solver.suggestValues(component.batchVariables, component.batchValues);
+                    return null;
+                }
+            });
+        }
+        Exception failure;
+        try {
+            failure = runAll(tasks);
+        } finally {
+            for (Component component : touched) {
+                component.batchVariables = null;
+                component.batchValues = null;
+                component.batchSize = 0;
+            }
+        }
+        rethrowUnchecked(failure);
+
+        for (int i = 0; i < edits.length; i++) {
+            edits[i].value = values[i];
+        }
+        dirty.addAll(touched);
+    }
+
+    /**
+     * Update the values of the variables of every component changed
+     * since the last update, concurrently.
+     *
+     * @return The variables whose value changed, or an empty set.
+     */
+    public Set<Variable> updateVariables() {
+        if (dirty.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        List<Component> updated = new ArrayList<Component>(dirty);
+        dirty.clear();
+        final List<Set<Variable>> results = new ArrayList<Set<Variable>>(Collections.<Set<Variable>>nCopies(updated.size(), null));
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(updated.size());
+        for (int i = 0; i < updated.size(); i++) {
+            final int index = i;
+            final Component component = updated.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    results.set(index, component.solver.updateVariables());
+                    return null;
+                }
+            });
+        }
+        rethrowUnchecked(runAll(tasks));
+
+        if (results.size() == 1) {
+            return results.get(0);
+        }
+        int size = 0;
+        for (Set<Variable> result : results) {
+            size += result.size();
+        }
+        Set<Variable> changed = new LinkedHashSet<Variable>(size * 4 / 3 + 1);
+        for (Set<Variable> result : results) {
+            changed.addAll(result);
+        }
+        return changed;
+    }
+
+    private void register(Constraint constraint, Component component) {
+        cns.put(constraint, component);
+        component.constraints.add(constraint);
+        dirty.add(component);
+    }
+
+    private Component editComponent(Variable variable) throws UnknownEditVariableException {
+        Component component = rootOf(variable);
+        if (component != null && component.edits.containsKey(variable)) {
+            return component;
+        }
+        throw new UnknownEditVariableException();
+    }
+
+    private Component componentFor(Variable variable) {
+        Component component = rootOf(variable);
+        if (component == null) {
+            component = newComponent(new Solver());
+            components.put(variable, component);
+        }
+        return component;
+    }
+
+    private Component newComponent(Solver solver) {
+        Component component = new Component(solver);
+        roots.add(component);
+        return component;
+    }
+
+    /**
+     * The component of a variable, or null if it is in none. The entry of
+     * the variable is pointed straight at the component, so the components
+     * merged into it can be collected.
+     */
+    private Component rootOf(Variable variable) {
+        Component component = components.get(variable);
+        if (component == null) {
+            return null;
+        }
+        Component root = find(component);
+        if (root != component) {
+            components.put(variable, root);
+        }
+        return root;
+    }
+
+    private void addRoots(Constraint constraint, List<Component> parts) {
+        for (Term term : constraint.getExpression().getTerms()) {
+            Component component = rootOf(term.getVariable());
+            if (component != null && !parts.contains(component)) {
+                parts.add(component);
+            }
+        }
+    }
+
+    private Component find(Component component) {
+        Component root = component;
+        while (root.parent != root) {
+            root = root.parent;
+        }
+        while (component.parent != root) {
+            Component next = component.parent;
+            component.parent = root;
+            component = next;
+        }
+        return root;
+    }
+
+    private static Component largest(List<Component> parts) {
+        Component largest = parts.get(0);
+        for (Component part : parts) {
+            if (part.size() > largest.size()) {
+                largest = part;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * The solver to add constraints connecting the given components to.
+     * For several components this is a fork of the tableau of the largest
+     * with the constraints and edits of the others copied in, which only
+     * replaces it once {@link #merge} is called.
+     */
+    private static Solver solverFor(List<Component> parts) {
+        if (parts.isEmpty()) {
+            return new Solver();
+        }
+        Component largest = largest(parts);
+        if (parts.size() == 1) {
+            return largest.solver;
+        }
+
+        // The components share no variables, so the constraints of one
+        // cannot conflict with those of another.
+        Solver solver = largest.solver.fork();
+        try {
+            for (Component part : parts) {
+                if (part == largest) {
+                    continue;
+                }
+                solver.addConstraints(part.constraints);
+                for (Map.Entry<Variable, Edit> entry : part.edits.entrySet()) {
+                    solver.addEditVariable(entry.getKey(), entry.getValue().strength);
+                    solver.suggestValue(entry.getKey(), entry.getValue().value);
+                }
+            }
+        } catch (KiwiException e) {
+            throw new InternalSolverError("failed to merge components: " + e);
+        } catch (UnknownEditVariableException e) {
+            throw new InternalSolverError("failed to merge components: " + e);
+        }
+        return solver;
+    }
+
+    /**
+     * Merge the given components into the largest, whose tableau becomes
+     * the given solver from {@link #solverFor}, and put the variables of
+     * the added constraints in it.
+     */
+    private Component merge(List<Component> parts, Solver solver, List<Constraint> added) {
+        Component component = parts.isEmpty() ? newComponent(solver) : largest(parts);
+        component.solver = solver;
+        for (Component part : parts) {
+            if (part == component) {
+                continue;
+            }
+            component.constraints.addAll(part.constraints);
+            component.edits.putAll(part.edits);
+            for (Constraint constraint : part.constraints) {
+                cns.put(constraint, component);
+            }
+            // The variables of the part still reach it until they are
+            // next looked up, so drop its tableau now.
+            part.solver = null;
+            part.constraints = null;
+            part.edits = null;
+            part.parent = component;
+            roots.remove(part);
+            dirty.remove(part);
+        }
+        for (Constraint constraint : added) {
+            for (Term term : constraint.getExpression().getTerms()) {
+                components.put(term.getVariable(), component);
+            }
+        }
+        dirty.add(component);
+        return component;
+    }
+
+    private static void link(Map<Object, Object> links, Object a, Object b) {
+        a = findLink(links, a);
+        b = findLink(links, b);
+        if (a != b) {
+            links.put(a, b);
+        }
+    }
+
+    private static Object findLink(Map<Object, Object> links, Object key) {
+        Object root = key;
+        for (Object next = links.get(root); next != null; next = links.get(root)) {
+            root = next;
+        }
+        while (key != root) {
+            key = links.put(key, root);
+        }
+        return root;
+    }
+
+    /**
+     * Run the tasks and return the first exception thrown by any of them.
+     * <p/>
+     * The tasks are forked from a single task submitted to the pool, so the
+     * calling thread hands over once per batch rather than once per task.
+     * With a single task, or a pool of one thread, they run on the calling
+     * thread instead.
+     */
+    private <T> Exception runAll(final List<Callable<T>> tasks) {
+        final Exception[] failures = new Exception[tasks.size()];
+        if (tasks.size() == 1 || pool.getParallelism() == 1) {
+            for (int i = 0; i < tasks.size(); i++) {
+                run(tasks, i, failures);
+            }
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    List<RecursiveAction> actions = new ArrayList<RecursiveAction>(tasks.size());
+                    for (int i = 0; i < tasks.size(); i++) {
+                        final int index = i;
+                        actions.add(new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                run(tasks, index, failures);
+                            }
+                        });
+                    }
+                    invokeAll(actions);
+                }
+            });
+        }
+
+        for (Exception failure : failures) {
+            if (failure != null) {
+                return failure;
+            }
+        }
+        return null;
+    }
+
+    private static <T> void run(List<Callable<T>> tasks, int index, Exception[] failures) {
+        try {
+            tasks.get(index).call();
+        } catch (Exception e) {
+            failures[index] = e;
+        }
+    }
+
+    private static void rethrowUnchecked(Throwable failure) {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new InternalSolverError("unexpected failure: " + failure);
+    }
+}
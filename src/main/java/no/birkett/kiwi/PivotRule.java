@@ -0,0 +1,208 @@
+package no.birkett.kiwi;
+
+/**
+ * Chooses the symbol which enters the basis in each iteration of the
+ * primal simplex method.
+ * <p/>
+ * A rule instance counts the pivots made by the solver it is installed
+ * in, so the rules can be compared on the same constraint set. Give each
+ * solver its own instance.
+ */
+public abstract class PivotRule {
+
+    private long pivotCount;
+
+    /**
+     * Take the first cell of the objective with a negative coefficient.
+     * This is the rule the solver has always used, and the default.
+     */
+    public static PivotRule firstNegative() {
+        return new FirstNegative();
+    }
+
+    /**
+     * Dantzig's rule: take the cell of the objective with the most
+     * negative coefficient.
+     */
+    public static PivotRule dantzig() {
+        return new Dantzig();
+    }
+
+    /**
+     * Bland's rule: take the negative cell with the lowest symbol id, and
+     * break ties in the ratio test by the lowest basic symbol id. Never
+     * cycles, at the cost of usually making more pivots.
+     */
+    public static PivotRule bland() {
+        return new Bland();
+    }
+
+    /**
+     * An approximate steepest edge rule: take the negative cell whose
+     * coefficient is largest relative to the norm of its column in the
+     * tableau. The norms are computed from the column index at each
+     * iteration rather than maintained across pivots.
+     */
+    public static PivotRule steepestEdge() {
+        return new SteepestEdge();
+    }
+
+    /**
+     * The number of primal pivots made with this rule since it was
+     * created or last reset.
+     */
+    public long getPivotCount() {
+        return pivotCount;
+    }
+
+    public void resetPivotCount() {
+        pivotCount = 0;
+    }
+
+    void pivoted() {
+        pivotCount++;
+    }
+
+    /**
+     * A new instance of the same rule, with its own pivot count.
+     */
+    abstract PivotRule newInstance();
+
+    /**
+     * Choose the entering symbol for the objective, or the invalid symbol
+     * if the objective is at its minimum. Dummy symbols never enter.
+     */
+    abstract Symbol selectEntering(Row objective, ColumnIndex columns);
+
+    /**
+     * Whether ties in the ratio test must go to the row with the lowest
+     * basic symbol id.
+     */
+    boolean breakTiesByLowestId() {
+        return false;
+    }
+
+    private static class FirstNegative extends PivotRule {
+
+        @Override
+        PivotRule newInstance() {
+            return new FirstNegative();
+        }
+
+        @Override
+        Symbol selectEntering(Row objective, ColumnIndex columns) {
+            for (int i = 0; i < objective.cellCount(); i++) {
+                if (objective.symbolAt(i).getType() != Symbol.Type.DUMMY && objective.coefficientAt(i) < 0.0) {
+                    return objective.symbolAt(i);
+                }
+            }
+            return Symbol.INVALID_SYMBOL;
+        }
+
+        @Override
+        public String toString() {
+            return "firstNegative";
+        }
+    }
+
+    private static class Dantzig extends PivotRule {
+
+        @Override
+        PivotRule newInstance() {
+            return new Dantzig();
+        }
+
+        @Override
+        Symbol selectEntering(Row objective, ColumnIndex columns) {
+            Symbol entering = Symbol.INVALID_SYMBOL;
+            double best = 0.0;
+            for (int i = 0; i < objective.cellCount(); i++) {
+                double coefficient = objective.coefficientAt(i);
+                if (coefficient < best && objective.symbolAt(i).getType() != Symbol.Type.DUMMY) {
+                    best = coefficient;
+                    entering = objective.symbolAt(i);
+                }
+            }
+            return entering;
+        }
+
+        @Override
+        public String toString() {
+            return "dantzig";
+        }
+    }
+
+    private static class Bland extends PivotRule {
+
+        @Override
+        PivotRule newInstance() {
+            return new Bland();
+        }
+
+        @Override
+        Symbol selectEntering(Row objective, ColumnIndex columns) {
+            Symbol entering = Symbol.INVALID_SYMBOL;
+            for (int i = 0; i < objective.cellCount(); i++) {
+                Symbol symbol = objective.symbolAt(i);
+                if (objective.coefficientAt(i) < 0.0 && symbol.getType() != Symbol.Type.DUMMY
+                        && (entering == Symbol.INVALID_SYMBOL || symbol.getId() < entering.getId())) {
+                    entering = symbol;
+                }
+            }
+            return entering;
+        }
+
+        @Override
+        boolean breakTiesByLowestId() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "bland";
+        }
+    }
+
+    private static class SteepestEdge extends PivotRule {
+
+        @Override
+        PivotRule newInstance() {
+            return new SteepestEdge();
+        }
+
+        @Override
+        Symbol selectEntering(Row objective, ColumnIndex columns) {
+            Symbol entering = Symbol.INVALID_SYMBOL;
+            double best = 0.0;
+            for (int i = 0; i < objective.cellCount(); i++) {
+                double coefficient = objective.coefficientAt(i);
+                Symbol symbol = objective.symbolAt(i);
+                if (coefficient >= 0.0 || symbol.getType() == Symbol.Type.DUMMY) {
+                    continue;
+                }
+
+                // The entering symbol's edge has a unit step in the symbol
+                // itself plus its coefficient in every row containing it.
+                double norm = 1.0;
+                ColumnIndex.RowSet column = columns.get(symbol);
+                for (int j = 0; j < column.size(); j++) {
+                    double c = column.get(j).coefficientFor(symbol);
+                    norm += c * c;
+                }
+
+                // Compare squared scores to avoid the square root.
+                double score = coefficient * coefficient / norm;
+                if (score > best) {
+                    best = score;
+                    entering = symbol;
+                }
+            }
+            return entering;
+        }
+
+        @Override
+        public String toString() {
+            return "steepestEdge";
+        }
+    }
+}
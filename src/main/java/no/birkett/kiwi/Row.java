@@ -1,30 +1,37 @@
 package no.birkett.kiwi;
 
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
-
 /**
  * Created by alex on 30/01/15.
+ * <p/>
+ * A row of the tableau: a constant plus a set of cells mapping symbols to
+ * coefficients. The cell storage is left to subclasses, see
+ * {@link RowFactory} for the available representations.
  */
-public class Row {
+abstract class Row {
 
     private double constant;
 
-    private Map<Symbol, Double> cells = new LinkedHashMap<>();
+    /**
+     * The basic symbol this row is stored under in the tableau, if any.
+     */
+    Symbol basic;
 
-    public Row() {
-        this(0);
-    }
+    /**
+     * The column index this row reports its cells to while it is part of
+     * the tableau, and the key it is stored under in the index.
+     */
+    private ColumnIndex columns;
+    int indexKey = -1;
 
-    public Row(double constant) {
-        this.constant = constant;
-    }
+    /**
+     * The token of the solver which may change the row in place. Rows
+     * shared between a solver and its forks belong to none of them, and
+     * are copied before they are changed.
+     */
+    Object owner;
 
-    public Row(Row other) {
-        this.cells = new LinkedHashMap<>(other.cells);
-        this.constant = other.constant;
+    protected Row(double constant) {
+        this.constant = constant;
     }
 
     public double getConstant() {
@@ -35,12 +42,87 @@ public class Row {
         this.constant = constant;
     }
 
-    public Map<Symbol, Double> getCells() {
-        return cells;
+    /**
+     * Create an independent copy of this row with the same constant and
+     * cells. The copy is not attached to any column index.
+     */
+    abstract Row copy();
+
+    /**
+     * The number of cells in the row.
+     */
+    abstract int cellCount();
+
+    boolean isEmpty() {
+        return cellCount() == 0;
+    }
+
+    /**
+     * The symbol of the cell at the given position, 0 <= index < cellCount().
+     * <p/>
+     * The iteration order is deterministic, but depends on the row
+     * representation and is not stable across insertions and removals.
+     */
+    abstract Symbol symbolAt(int index);
+
+    /**
+     * The coefficient of the cell at the given position, 0 <= index < cellCount().
+     */
+    abstract double coefficientAt(int index);
+
+    /**
+     * Register every cell of the row with the given column index. Cells
+     * inserted or removed afterwards are reported to the index until the
+     * row is detached.
+     */
+    void attach(ColumnIndex columns) {
+        this.columns = columns;
+        for (int i = 0; i < cellCount(); i++) {
+            columns.add(symbolAt(i), this);
+        }
+    }
+
+    /**
+     * Take the place of the given row in a column index, which must hold
+     * the given row under each of the cells of this one. Used to swap a
+     * private copy in for a shared row without reindexing its cells.
+     */
+    void attachInPlaceOf(Row original, ColumnIndex columns) {
+        this.columns = columns;
+        this.indexKey = original.indexKey;
+        for (int i = 0; i < cellCount(); i++) {
+            columns.replace(symbolAt(i), original, this);
+        }
+    }
+
+    /**
+     * Remove every cell of the row from the column index it is attached to.
+     */
+    void detach() {
+        if (columns != null) {
+            for (int i = 0; i < cellCount(); i++) {
+                columns.remove(symbolAt(i), this);
+            }
+            columns = null;
+        }
+    }
+
+    /**
+     * Report a newly created cell to the column index, if attached.
+     */
+    protected void cellAdded(Symbol symbol) {
+        if (columns != null) {
+            columns.add(symbol, this);
+        }
     }
 
-    public void setCells(Map<Symbol, Double> cells) {
-        this.cells = cells;
+    /**
+     * Report a removed cell to the column index, if attached.
+     */
+    protected void cellRemoved(Symbol symbol) {
+        if (columns != null) {
+            columns.remove(symbol, this);
+        }
     }
 
     /**
@@ -59,19 +141,7 @@ public class Row {
      * added to the existing coefficient. If the resulting coefficient
      * is zero, the symbol will be removed from the row
      */
-    void insert(Symbol symbol, double coefficient) {
-        Double existingCoefficient = cells.get(symbol);
-
-        if (existingCoefficient != null) {
-            coefficient += existingCoefficient;
-        }
-
-        if (Util.nearZero(coefficient)) {
-            cells.remove(symbol);
-        } else {
-            cells.put(symbol, Double.valueOf(coefficient));
-        }
-    }
+    abstract void insert(Symbol symbol, double coefficient);
 
     /**
      * Insert a symbol into the row with a given coefficient.
@@ -93,26 +163,7 @@ public class Row {
      * @param other
      * @param coefficient
      */
-    void insert(Row other, double coefficient) {
-        this.constant += other.constant * coefficient;
-
-        for(Symbol s: other.cells.keySet()){
-            double coeff = other.cells.get(s) * coefficient;
-
-            //insert(s, coeff);  this line looks different than the c++
-
-            //changes start here
-            Double value = this.cells.get(s);
-            if(value == null){
-                this.cells.put(s, 0.0);
-            }
-            double temp = this.cells.get(s) + coeff;
-            this.cells.put(s, temp);
-            if(Util.nearZero(temp)){
-                this.cells.remove(s);
-            }
-        }
-    }
+    abstract void insert(Row other, double coefficient);
 
     /**
      * Insert a row into this row with a given coefficient.
@@ -129,28 +180,12 @@ public class Row {
     /**
      * Remove the given symbol from the row.
      */
-    void remove(Symbol symbol) {
-
-        cells.remove(symbol);
-        // not sure what this does, can the symbol be added more than once?
-        /*CellMap::iterator it = m_cells.find( symbol );
-        if( it != m_cells.end() )
-            m_cells.erase( it );*/
-    }
+    abstract void remove(Symbol symbol);
 
     /**
      * Reverse the sign of the constant and all cells in the row.
      */
-    void reverseSign() {
-        this.constant = -this.constant;
-
-        Map<Symbol, Double> newCells = new LinkedHashMap<>();
-        for(Symbol s: cells.keySet()){
-            double value = - cells.get(s);
-            newCells.put(s, value);
-        }
-        this.cells = newCells;
-    }
+    abstract void reverseSign();
 
     /**
      * Solve the row for the given symbol.
@@ -164,18 +199,7 @@ public class Row {
      *
      * @param symbol
      */
-    void solveFor(Symbol symbol) {
-        double coeff = -1.0 / cells.get(symbol);
-        cells.remove(symbol);
-        this.constant *= coeff;
-
-        HashMap<Symbol, Double> newCells = new LinkedHashMap<>();
-        for(Symbol s: cells.keySet()){
-            double value = cells.get(s) * coeff;
-            newCells.put(s, value);
-        }
-        this.cells = newCells;
-    }
+    abstract void solveFor(Symbol symbol);
 
     /**
      * Solve the row for the given symbols.
@@ -202,13 +226,7 @@ public class Row {
      *
      * @return
      */
-    double coefficientFor(Symbol symbol) {
-        if (this.cells.containsKey(symbol)) {
-            return this.cells.get(symbol);
-        } else {
-            return 0.0;
-        }
-    }
+    abstract double coefficientFor(Symbol symbol);
 
     /**
      * Substitute a symbol with the data from another row.
@@ -218,12 +236,6 @@ public class Row {
      * expression 3 * a * y + a * c + b.
      * If the symbol does not exist in the row, this is a no-op.
      */
-    void substitute(Symbol symbol, Row row) {
-        if (cells.containsKey(symbol)) {
-            double coefficient = cells.get(symbol);
-            cells.remove(symbol);
-            insert(row, coefficient);
-        }
-    }
+    abstract void substitute(Symbol symbol, Row row);
 
 }
@@ -0,0 +1,35 @@
+package no.birkett.kiwi;
+
+/**
+ * The available tableau row representations.
+ * <p/>
+ * A solver creates all of its rows through one factory, so the
+ * representations can be compared by running the same workload against
+ * solvers built with each of them.
+ */
+public enum RowFactory {
+
+    /**
+     * Cells in an open addressing hash map keyed by symbol id. Constant
+     * time lookups, suited to long rows such as the objective.
+     */
+    HASH {
+        @Override
+        Row createRow(double constant) {
+            return new HashRow(constant);
+        }
+    },
+
+    /**
+     * Cells in parallel arrays sorted by symbol id, combined with linear
+     * merges. Suited to the short rows typical of layout tableaux.
+     */
+    SPARSE {
+        @Override
+        Row createRow(double constant) {
+            return new SparseRow(constant);
+        }
+    };
+
+    abstract Row createRow(double constant);
+}
@@ -1,6 +1,9 @@
 package no.birkett.kiwi;
 
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 /**
@@ -8,36 +11,493 @@ import java.util.*;
  */
 public class Solver {
 
+    /**
+     * Tags and edits are shared with forks like the rows of the tableau,
+     * and only the solver whose token they carry may change them in place.
+     */
     private static class Tag {
+        final Object owner;
         Symbol marker;
         Symbol other;
+        double strength;
+        ConstraintReference reference;
+
+        public Tag(Object owner){
+            this.owner = owner;
+            marker = Symbol.INVALID_SYMBOL;
+            other = Symbol.INVALID_SYMBOL;
+        }
 
-        public Tag(){
-            marker = new Symbol();
-            other = new Symbol();
+        Tag copy(Object owner){
+            Tag copy = new Tag(owner);
+            copy.marker = marker;
+            copy.other = other;
+            copy.strength = strength;
+            return copy;
         }
     }
 
     private static class EditInfo {
+        final Object owner;
         Tag tag;
         Constraint constraint;
         double constant;
 
-        public EditInfo(Constraint constraint, Tag tag, double constant){
+        public EditInfo(Object owner, Constraint constraint, Tag tag, double constant){
+            this.owner = owner;
             this.constraint = constraint;
             this.tag = tag;
             this.constant = constant;
         }
     }
 
-    private Map<Constraint, Tag> cns = new LinkedHashMap<Constraint, Tag>();
-    private Map<Symbol, Row> rows = new LinkedHashMap<Symbol, Row>();
-    private Map<Variable, Symbol> vars = new LinkedHashMap<Variable, Symbol>();
-    private Map<Variable, EditInfo> edits = new LinkedHashMap<Variable, EditInfo>();
-    private List<Symbol> infeasibleRows = new ArrayList<Symbol>();
-    private Row objective = new Row();
+    /**
+     * The solver which last wrote its values into the variables. A solver
+     * and its forks share the variables, and share this as well.
+     */
+    private static class ValueWriter {
+        Solver solver;
+    }
+
+    /**
+     * The constant and strength the solver has given a constraint through
+     * updateConstant, setStrength or setEditStrength. The solver never
+     * changes the constraint object itself, which may be shared with forks,
+     * so these take the place of its own. A state is replaced rather than
+     * changed, so forks can share it.
+     */
+    private static class ConstraintState {
+        final double constant;
+        final double strength;
+
+        ConstraintState(double constant, double strength){
+            this.constant = constant;
+            this.strength = strength;
+        }
+    }
+
+    /**
+     * A constraint held weakly, which remembers the tag of its row so the
+     * row can be removed once the constraint has been collected.
+     */
+    private static class ConstraintReference extends WeakReference<Constraint> {
+        final Tag tag;
+
+        ConstraintReference(Constraint constraint, Tag tag, ReferenceQueue<Object> queue){
+            super(constraint, queue);
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * A variable held weakly, which remembers its symbol and edit so they
+     * can be released once the variable has been collected.
+     */
+    private static class VariableReference extends WeakReference<Variable> {
+        final Symbol symbol;
+        EditInfo edit;
+
+        VariableReference(Variable variable, Symbol symbol, ReferenceQueue<Object> queue){
+            super(variable, queue);
+            this.symbol = symbol;
+        }
+    }
+
+    /**
+     * The terms of a disabled constraint, resolved to the symbols of their
+     * variables, so enabling it again skips the variable lookups.
+     */
+    private static class PreparedTerms {
+        final Symbol[] symbols;
+        final double[] coefficients;
+
+        PreparedTerms(Symbol[] symbols, double[] coefficients){
+            this.symbols = symbols;
+            this.coefficients = coefficients;
+        }
+    }
+
+    private final Journal journal = new Journal();
+    private List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+    private Map<Constraint, Tag> cns = new CopyOnWriteMap<Constraint, Tag>(journal);
+    private Row[] rows = new Row[16];
+    private Map<Variable, Symbol> vars = new CopyOnWriteMap<Variable, Symbol>(journal);
+    private Map<Variable, EditInfo> edits = new CopyOnWriteMap<Variable, EditInfo>(journal);
+    private ColumnIndex columns = new ColumnIndex(journal);
+    private SymbolWorklist infeasibleRows = new SymbolWorklist();
+    private long infeasibleRowsQueued;
+    private long infeasibleRowsProcessed;
+    private SymbolWorklist dirtyVariables = new SymbolWorklist();
+    private Variable[] variablesById = new Variable[16];
+    private List<VariableChangeListener> listeners = new ArrayList<VariableChangeListener>();
+    private boolean publishSnapshots;
+    private volatile ValueSnapshot snapshot;
+    private boolean snapshotVariablesAdded;
+    private AliasTable aliases = new AliasTable(journal);
+    private Set<Variable> staleAliases = new LinkedHashSet<Variable>();
+    private boolean presolve;
+    private LazyBounds lazyBounds = new LazyBounds(journal);
+    private SymbolWorklist boundChecks = new SymbolWorklist();
+    private boolean lazyBoundsEnabled;
+    private CopyOnWriteMap<Constraint, PreparedTerms> disabled = new CopyOnWriteMap<Constraint, PreparedTerms>(journal);
+    private CopyOnWriteMap<String, List<Constraint>> groups = new CopyOnWriteMap<String, List<Constraint>>(journal);
+    private Map<Variable, Set<Constraint>> constraintsByVariable = new CopyOnWriteMap<Variable, Set<Constraint>>(journal);
+    private int[] freeSymbolIds = new int[16];
+    private int freeSymbolCount;
+    private List<Symbol> releasedVariableSymbols = new ArrayList<Symbol>();
+    private boolean weakReferences;
+    private ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private Set<Reference<?>> references = new HashSet<Reference<?>>();
+    private VariableReference[] variableReferences = new VariableReference[0];
+    private List<VariableReference> collectedVariables = new ArrayList<VariableReference>();
+    private Object owner = new Object();
+    private CopyOnWriteMap<Constraint, ConstraintState> constraintStates = new CopyOnWriteMap<Constraint, ConstraintState>(journal);
+    private ValueWriter valueWriter = new ValueWriter();
+    private final RowFactory rowFactory;
+    private PivotRule pivotRule = PivotRule.firstNegative();
+    private Row objective;
     private Row artificial;
+    private int symbolCount;
+
+    public Solver() {
+        this(RowFactory.HASH);
+    }
+
+    /**
+     * Create a solver which stores its tableau rows in the given representation.
+     */
+    public Solver(RowFactory rowFactory) {
+        this.rowFactory = rowFactory;
+        this.objective = rowFactory.createRow(0);
+        this.objective.owner = owner;
+        this.valueWriter.solver = this;
+    }
+
+    /**
+     * Set the rule used to choose the entering symbol when optimizing.
+     * The rule counts the pivots it is used for, so each solver should
+     * be given its own instance.
+     */
+    public void setPivotRule(PivotRule pivotRule) {
+        this.pivotRule = pivotRule;
+    }
+
+    public PivotRule getPivotRule() {
+        return pivotRule;
+    }
+
+    /**
+     * Enable or disable the presolve for constraints added afterwards.
+     * <p/>
+     * With presolve enabled, a required equality over at most two
+     * variables, such as x == c or x == y + c, where one of the variables
+     * does not appear in the tableau yet, is not given a row. That
+     * variable is instead recorded as an alias of the other one, or of the
+     * constant, and substituted wherever it appears in later constraints.
+     * Its value is derived from its root by updateVariables.
+     */
+    public void setPresolve(boolean presolve) {
+        if (presolve && weakReferences) {
+            throw new IllegalStateException("the presolve cannot be used with weak references");
+        }
+        this.presolve = presolve;
+    }
+
+    public boolean isPresolve() {
+        return presolve;
+    }
+
+    /**
+     * Enable or disable lazy bounds for constraints added afterwards.
+     * <p/>
+     * With lazy bounds enabled, a required inequality over a single
+     * variable, such as x >= 0 or width <= 500, is not given a row when it
+     * is added. The solver checks it whenever the variable moves and only
+     * adds its row once the solution would violate it. Bounds which never
+     * become active never enter the tableau.
+     */
+    public void setLazyBounds(boolean lazyBounds) {
+        if (lazyBounds && weakReferences) {
+            throw new IllegalStateException("lazy bounds cannot be used with weak references");
+        }
+        this.lazyBoundsEnabled = lazyBounds;
+    }
+
+    public boolean isLazyBounds() {
+        return lazyBoundsEnabled;
+    }
+
+    /**
+     * Hold variables and constraints through weak references.
+     * <p/>
+     * Normally the solver keeps every variable it has seen, and every
+     * constraint added to it, until they are removed explicitly. With weak
+     * references, a constraint which the application no longer references
+     * is removed from the solver, and a variable which neither the
+     * application nor any constraint references loses its edit variable
+     * and its tableau symbol. The solver reclaims them lazily, the next
+     * time constraints are added or variables updated.
+     * <p/>
+     * Disabled constraints and constraint groups are still held strongly.
+     * The presolve and lazy bounds hold constraints outside the tableau,
+     * so they cannot be combined with weak references.
+     *
+     * @throws IllegalStateException Anything has been added to the solver, the presolve
+     *                               or lazy bounds are enabled, or a checkpoint is held.
+     */
+    public void setWeakReferences(boolean weakReferences) {
+        if (weakReferences == this.weakReferences) {
+            return;
+        }
+        if (!vars.isEmpty() || !cns.isEmpty() || !disabled.isEmpty() || !aliases.isEmpty() || !lazyBounds.isEmpty()) {
+            throw new IllegalStateException("the solver is not empty");
+        }
+        if (!checkpoints.isEmpty()) {
+            throw new IllegalStateException("the solver holds checkpoints");
+        }
+        if (presolve || lazyBoundsEnabled) {
+            throw new IllegalStateException("weak references cannot be used with the presolve or lazy bounds");
+        }
+
+        this.weakReferences = weakReferences;
+        if (weakReferences) {
+            cns = new WeakHashMap<Constraint, Tag>();
+            vars = new WeakHashMap<Variable, Symbol>();
+            edits = new WeakHashMap<Variable, EditInfo>();
+            constraintsByVariable = new WeakHashMap<Variable, Set<Constraint>>();
+        } else {
+            cns = new CopyOnWriteMap<Constraint, Tag>(journal);
+            vars = new CopyOnWriteMap<Variable, Symbol>(journal);
+            edits = new CopyOnWriteMap<Variable, EditInfo>(journal);
+            constraintsByVariable = new CopyOnWriteMap<Variable, Set<Constraint>>(journal);
+        }
+    }
+
+    public boolean isWeakReferences() {
+        return weakReferences;
+    }
+
+    /**
+     * Publish a {@link ValueSnapshot} of the variable values after every
+     * update, for threads which read the layout while the solver is being
+     * changed by another. Reading the variables themselves from such a
+     * thread may see an update half written.
+     * <p/>
+     * Each snapshot copies the values, and the index of the variables is
+     * shared between snapshots until a variable is added. Snapshots hold
+     * their variables strongly, also in weak reference mode.
+     */
+    public void setPublishSnapshots(boolean publishSnapshots) {
+        this.publishSnapshots = publishSnapshots;
+        if (publishSnapshots) {
+            snapshotVariablesAdded = true;
+            publishSnapshot(Collections.<Variable>emptySet());
+        } else {
+            snapshot = null;
+        }
+    }
+
+    public boolean isPublishSnapshots() {
+        return publishSnapshots;
+    }
+
+    /**
+     * The snapshot published by the last update, or null if snapshots are
+     * not published. This may be called from any thread.
+     */
+    public ValueSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Create an independent copy of the solver, for trying out changes
+     * without touching this one.
+     * <p/>
+     * The tableau rows, the column index and the bookkeeping maps are
+     * shared with the fork, and whichever solver changes a shared row,
+     * column or map bucket copies it first. A fork costs copying the arrays
+     * indexed by symbol and the bucket arrays of the maps, plus the parts
+     * either solver changes afterwards.
+     * <p/>
+     * The constraints and variables themselves are shared. The solvers
+     * never change the constraints, and keep the constants and strengths
+     * changed through them for themselves. updateVariables on either
+     * solver writes its values into the variables. When a solver updates
+     * after the other one has written them, it writes all of its variables
+     * again. Variables which only the other solver has keep the values it
+     * wrote.
+     * <p/>
+     * Listeners, snapshot publishing and checkpoints are not carried over
+     * to the fork.
+     *
+     * @throws IllegalStateException The solver holds its variables and constraints weakly.
+     */
+    public Solver fork() {
+        if (weakReferences) {
+            throw new IllegalStateException("a solver with weak references cannot be forked");
+        }
+
+        Solver fork = new Solver(rowFactory);
+        owner = new Object();
+        fork.rows = rows.clone();
+        fork.columns = columns.fork(fork.journal);
+        fork.objective = objective;
+        fork.valueWriter = valueWriter;
+
+        fork.cns = forkMap(cns, fork.journal);
+        fork.edits = forkMap(edits, fork.journal);
+        fork.vars = forkMap(vars, fork.journal);
+        fork.variablesById = variablesById.clone();
+        fork.freeSymbolIds = freeSymbolIds.clone();
+        fork.freeSymbolCount = freeSymbolCount;
+        fork.symbolCount = symbolCount;
+        fork.releasedVariableSymbols.addAll(releasedVariableSymbols);
+        fork.constraintsByVariable = forkMap(constraintsByVariable, fork.journal);
+
+        fork.infeasibleRows = infeasibleRows.copy();
+        fork.infeasibleRowsQueued = infeasibleRowsQueued;
+        fork.infeasibleRowsProcessed = infeasibleRowsProcessed;
+        fork.dirtyVariables = dirtyVariables.copy();
+
+        fork.aliases = aliases.fork(fork.journal);
+        fork.staleAliases.addAll(staleAliases);
+        fork.presolve = presolve;
+        fork.lazyBounds = lazyBounds.fork(fork.journal);
+        fork.boundChecks = boundChecks.copy();
+        fork.lazyBoundsEnabled = lazyBoundsEnabled;
+        fork.disabled = disabled.fork(fork.journal);
+        fork.groups = groups.fork(fork.journal);
+        fork.constraintStates = constraintStates.fork(fork.journal);
+        fork.pivotRule = pivotRule.newInstance();
+        return fork;
+    }
+
+    /**
+     * Fork one of the maps which are held weakly in weak reference mode.
+     * Solvers in that mode cannot be forked.
+     */
+    private static <K, V> Map<K, V> forkMap(Map<K, V> map, Journal journal) {
+        return ((CopyOnWriteMap<K, V>) map).fork(journal);
+    }
+
+    /**
+     * Record the current state of the solver, so that a batch of changes
+     * can be undone with {@link #rollback}.
+     * <p/>
+     * Taking a checkpoint costs a constant amount of work. While it is
+     * held, the solver records in a journal each row, column, map bucket
+     * and array slot it replaces, the first time it replaces it, so every
+     * change made afterwards costs a constant amount more and the journal
+     * grows with the changes. Release checkpoints which are no longer
+     * needed with {@link #release}. The journal is dropped once no
+     * checkpoint is held.
+     *
+     * @throws IllegalStateException The solver holds its variables and constraints weakly.
+     */
+    public Checkpoint checkpoint() {
+        if (weakReferences) {
+            throw new IllegalStateException("a solver with weak references cannot take checkpoints");
+        }
+
+        renewOwners();
+        journal.setRecording(true);
+        Checkpoint checkpoint = new Checkpoint(this, journal.position(), rows, objective,
+                variablesById, freeSymbolIds, freeSymbolCount, symbolCount);
+        checkpoints.add(checkpoint);
+        return checkpoint;
+    }
+
+    /**
+     * Put the constraints, edit variables and tableau back as they were
+     * when the checkpoint was taken. This includes the constants and
+     * strengths set by updateConstant and setStrength.
+     * <p/>
+     * The journal is undone in reverse order back to the checkpoint, so
+     * this costs the number of changes made since it was taken, not the
+     * size of the solver. The checkpoint stays valid, so the solver may be
+     * rolled back to it again. Checkpoints taken after it are released.
+     * <p/>
+     * Settings, listeners and snapshot publishing are not rolled back. The
+     * variables themselves are not touched: the next update writes the
+     * values which changed since the checkpoint back into them. Variables
+     * added since the checkpoint keep their values.
+     *
+     * @throws IllegalArgumentException The checkpoint was taken of another solver, or has been
+     *                                  released.
+     */
+    public void rollback(Checkpoint checkpoint) {
+        int index = liveCheckpoint(checkpoint);
+
+        journal.undo(checkpoint.position);
+        rows = checkpoint.rows;
+        objective = checkpoint.objective;
+        variablesById = checkpoint.variablesById;
+        freeSymbolIds = checkpoint.freeSymbolIds;
+        freeSymbolCount = checkpoint.freeSymbolCount;
+        symbolCount = checkpoint.symbolCount;
+        checkpoints.subList(index + 1, checkpoints.size()).clear();
+        renewOwners();
+
+        // Both worklists are empty between calls, and the symbols left on
+        // them by a failed call may now belong to something else.
+        infeasibleRows = new SymbolWorklist();
+        boundChecks = new SymbolWorklist();
+        snapshotVariablesAdded = true;
+    }
+
+    /**
+     * Stop recording changes for a checkpoint. Releasing a checkpoint
+     * which has already been released does nothing.
+     *
+     * @throws IllegalArgumentException The checkpoint was taken of another solver.
+     */
+    public void release(Checkpoint checkpoint) {
+        if (checkpoint.solver != this) {
+            throw new IllegalArgumentException("the checkpoint was taken of another solver");
+        }
+        for (int i = checkpoints.size() - 1; i >= 0; i--) {
+            if (checkpoints.get(i) == checkpoint) {
+                checkpoints.remove(i);
+                break;
+            }
+        }
+        if (checkpoints.isEmpty()) {
+            journal.setRecording(false);
+        }
+    }
+
+    /**
+     * The position of a checkpoint among the ones the solver holds.
+     */
+    private int liveCheckpoint(Checkpoint checkpoint) {
+        if (checkpoint.solver != this) {
+            throw new IllegalArgumentException("the checkpoint was taken of another solver");
+        }
+        for (int i = checkpoints.size() - 1; i >= 0; i--) {
+            if (checkpoints.get(i) == checkpoint) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("the checkpoint has been released");
+    }
 
+    /**
+     * Give the solver and its structures new owner tokens, so that nothing
+     * they hold now is changed in place afterwards.
+     */
+    private void renewOwners() {
+        owner = new Object();
+        columns.renew();
+        ((CopyOnWriteMap<Constraint, Tag>) cns).renew();
+        ((CopyOnWriteMap<Variable, Symbol>) vars).renew();
+        ((CopyOnWriteMap<Variable, EditInfo>) edits).renew();
+        ((CopyOnWriteMap<Variable, Set<Constraint>>) constraintsByVariable).renew();
+        disabled.renew();
+        groups.renew();
+        constraintStates.renew();
+        aliases.renew();
+        lazyBounds.renew();
+    }
 
     /**
      * Add a constraint to the solver.
@@ -47,17 +507,210 @@ public class Solver {
      * @throws UnsatisfiableConstraintException      The given constraint is required and cannot be satisfied.
      */
     public void addConstraint(Constraint constraint) throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        reclaimCollected();
+        insertConstraint(constraint);
+        indexConstraint(constraint);
+        optimize(objective);
+
+        if (!boundChecks.isEmpty()) {
+            try {
+                materializeBounds();
+            } catch (UnsatisfiableConstraintException e) {
+                // The new constraint conflicts with a lazy bound, so it is
+                // rejected as it would have been with the bound in the tableau.
+                discardConstraint(constraint);
+                unindexConstraint(constraint);
+                optimize(objective);
+                checkBounds();
+                throw new UnsatisfiableConstraintException(constraint);
+            }
+        }
+    }
+
+    /**
+     * Add a batch of constraints to the solver.
+     * <p/>
+     * The rows for all of the constraints are built and substituted into
+     * the tableau first, and the objective is optimized once at the end
+     * instead of after every constraint.
+     * <p/>
+     * If a constraint cannot be added, the constraints before it in the
+     * batch remain in the solver and the ones after it are not added. The
+     * exception reports the offending constraint. A constraint which only
+     * conflicts with a lazy bound is found by bisecting the batch, which
+     * optimizes the objective O(log n) more times for a batch of n.
+     *
+     * @param constraints
+     * @throws DuplicateConstraintException A constraint has already been added to the solver.
+     * @throws UnsatisfiableConstraintException      A constraint is required and cannot be satisfied.
+     */
+    public void addConstraints(Collection<Constraint> constraints) throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        reclaimCollected();
+        List<Constraint> added = new ArrayList<Constraint>(constraints.size());
+        try {
+            for (Constraint constraint : constraints) {
+                insertConstraint(constraint);
+                indexConstraint(constraint);
+                added.add(constraint);
+            }
+        } catch (DuplicateConstraintException e) {
+            settleAdded(added);
+            throw e;
+        } catch (UnsatisfiableConstraintException e) {
+            settleAdded(added);
+            throw e;
+        }
+        settleAdded(added);
+    }
+
+    /**
+     * Optimize after adding a batch of constraints, which may have stopped
+     * part way, and add the lazy bounds they violate.
+     */
+    private void settleAdded(List<Constraint> added) throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        optimize(objective);
+        if (boundChecks.isEmpty()) {
+            return;
+        }
+        try {
+            materializeBounds();
+        } catch (UnsatisfiableConstraintException e) {
+            // Some constraint in the batch conflicts with a lazy bound.
+            throw new UnsatisfiableConstraintException(bisectBatch(added, false));
+        }
+    }
+
+    /**
+     * Find the constraint of a batch which conflicts with the lazy bounds,
+     * after the whole batch went into the tableau and materializing the
+     * bounds failed.
+     * <p/>
+     * A prefix of the batch which fits the bounds still fits when it is
+     * shortened, so the shortest prefix which does not fit is found by
+     * bisection. Each step only inserts or takes out the constraints
+     * between the previous prefix and the next one. For a batch of n
+     * constraints the steps move O(n) constraints in total and optimize
+     * O(log n) times, where adding the batch again one constraint at a
+     * time would optimize n times.
+     * <p/>
+     * The constraints before the offending one are left in the solver and
+     * it and the rest of the batch are taken out again.
+     *
+     * @param enabling whether the batch was enabled rather than added
+     * @return the first constraint of the batch which does not fit
+     */
+    private Constraint bisectBatch(List<Constraint> batch, boolean enabling) {
+        int fits = 0;
+        int fails = batch.size();
+        int inserted = batch.size();
+        while (fails - fits > 1) {
+            int middle = (fits + fails) >>> 1;
+            inserted = resizeBatch(batch, inserted, middle, enabling);
+            if (inserted < middle) {
+                // A bound materialized by an earlier step already rejects it.
+                fails = inserted + 1;
+                continue;
+            }
+            optimize(objective);
+            try {
+                materializeBounds();
+                fits = middle;
+            } catch (UnsatisfiableConstraintException e) {
+                fails = middle;
+            }
+        }
+        resizeBatch(batch, inserted, fits, enabling);
+        optimize(objective);
+        checkBounds();
+        return batch.get(fits);
+    }
+
+    /**
+     * Insert or take out constraints at the end of a batch so that its
+     * first count constraints are in the solver, without optimizing the
+     * objective. Returns how many are in, which is fewer than count if a
+     * constraint cannot be inserted.
+     */
+    private int resizeBatch(List<Constraint> batch, int inserted, int count, boolean enabling) {
+        while (inserted > count) {
+            Constraint constraint = batch.get(--inserted);
+            if (enabling) {
+                disabled.put(constraint, prepareTerms(constraint));
+                discardConstraint(constraint);
+            } else {
+                discardConstraint(constraint);
+                unindexConstraint(constraint);
+            }
+        }
+        try {
+            for (; inserted < count; inserted++) {
+                Constraint constraint = batch.get(inserted);
+                if (enabling) {
+                    reinsertConstraint(constraint);
+                } else {
+                    insertConstraint(constraint);
+                    indexConstraint(constraint);
+                }
+            }
+        } catch (DuplicateConstraintException e) {
+            throw new InternalSolverError("constraint of a batch was still present");
+        } catch (UnsatisfiableConstraintException e) {
+            // Reported through the count.
+        }
+        return inserted;
+    }
+
+    /**
+     * Add the row for a constraint to the tableau without optimizing the
+     * objective. The tableau stays feasible, so the objective can be
+     * optimized once after any number of insertions.
+     */
+    private void insertConstraint(Constraint constraint) throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        insertConstraint(constraint, null);
+    }
+
+    /**
+     * Add the row for a constraint to the tableau without optimizing the
+     * objective, taking its terms from the prepared terms if there are
+     * any. Prepared terms only name variables the tableau already has a
+     * symbol for, so the presolve never applies to them.
+     */
+    private void insertConstraint(Constraint constraint, PreparedTerms prepared) throws DuplicateConstraintException, UnsatisfiableConstraintException {
 
-        if (cns.containsKey(constraint)) {
+        if (cns.containsKey(constraint) || aliases.contains(constraint) || lazyBounds.contains(constraint) || disabled.containsKey(constraint)) {
             throw new DuplicateConstraintException(constraint);
         }
 
-        Tag tag = new Tag();
-        Row row = createRow(constraint, tag);
+        if (presolve && prepared == null && aliasConstraint(constraint)) {
+            return;
+        }
+
+        if (lazyBoundsEnabled) {
+            Variable variable = boundedVariable(constraint);
+            if (variable != null) {
+                Symbol symbol = getVarSymbol(variable);
+                lazyBounds.add(constraint, symbol);
+                boundChecks.add(symbol);
+                return;
+            }
+        }
+
+        insertRow(constraint, prepared);
+    }
+
+    /**
+     * Add the row for a constraint to the tableau, bypassing the presolve
+     * and lazy bounds.
+     */
+    private void insertRow(Constraint constraint, PreparedTerms prepared) throws UnsatisfiableConstraintException {
+        Tag tag = new Tag(owner);
+        tag.strength = strengthOf(constraint);
+        Row row = createRow(constraint, tag, prepared);
         Symbol subject = chooseSubject(row, tag);
 
         if(subject.getType() == Symbol.Type.INVALID && allDummies(row)){
             if (!Util.nearZero(row.getConstant())) {
+                releaseSymbols(tag);
                 throw new UnsatisfiableConstraintException(constraint);
             } else {
                 subject = tag.marker;
@@ -66,74 +719,500 @@ public class Solver {
 
         if (subject.getType() == Symbol.Type.INVALID) {
             if (!addWithArtificialVariable(row)) {
+                releaseSymbols(tag);
                 throw new UnsatisfiableConstraintException(constraint);
             }
         } else {
             row.solveFor(subject);
             substitute(subject, row);
-            this.rows.put(subject, row);
+            addRow(subject, row);
         }
 
         this.cns.put(constraint, tag);
-
-        optimize(objective);
+        if (weakReferences) {
+            tag.reference = new ConstraintReference(constraint, tag, collected);
+            references.add(tag.reference);
+        }
     }
 
     public void removeConstraint(Constraint constraint) throws UnknownConstraintException, InternalSolverError{
+        if(lazyBounds.remove(constraint) != null){
+            unindexConstraint(constraint);
+            return;
+        }
+        if(disabled.containsKey(constraint)){
+            disabled.remove(constraint);
+            unindexConstraint(constraint);
+            return;
+        }
+
         Tag tag = cns.get(constraint);
         if(tag == null){
+            if(aliases.contains(constraint)){
+                unindexConstraint(constraint);
+                removeAliases(Collections.singleton(constraint));
+                checkBounds();
+                return;
+            }
             throw new UnknownConstraintException(constraint);
         }
 
-        cns.remove(constraint);
-        removeConstraintEffects(constraint, tag);
+        unindexConstraint(constraint);
+        deleteConstraint(constraint, tag);
+        optimize(objective);
+        checkBounds();
+    }
 
-        Row row = rows.get(tag.marker);
-        if(row != null){
-            rows.remove(tag.marker);
-        }
-        else{
-            row = getMarkerLeavingRow(tag.marker);
-            if(row == null){
-                throw new InternalSolverError("internal solver error");
+    /**
+     * Remove a batch of constraints from the solver.
+     * <p/>
+     * The rows of all of the constraints are taken out of the tableau
+     * first, and the objective is optimized once at the end instead of
+     * after every constraint. Constraints absorbed by the presolve are
+     * removed together, so the remaining aliases are replayed only once.
+     *
+     * @param constraints
+     * @throws UnknownConstraintException A constraint has not been added to the solver.
+     *                                    No constraints are removed in this case.
+     */
+    public void removeConstraints(Collection<Constraint> constraints) throws UnknownConstraintException, InternalSolverError{
+        for(Constraint constraint : constraints){
+            if(!hasConstraint(constraint) && !disabled.containsKey(constraint)){
+                throw new UnknownConstraintException(constraint);
             }
+        }
 
-            //This looks wrong! changes made below
-            //Symbol leaving = tag.marker;
-            //rows.remove(tag.marker);
+        for(Constraint constraint : constraints){
+            disabled.remove(constraint);
+            unindexConstraint(constraint);
+        }
+        discardConstraints(constraints);
+        optimize(objective);
+        checkBounds();
+    }
 
-            Symbol leaving = null;
-            for(Symbol s: rows.keySet()){
-                if(rows.get(s) == row){
-                    leaving = s;
-                }
+    /**
+     * Remove a batch of constraints wherever they are held, without
+     * optimizing the objective or checking lazy bounds. Unknown
+     * constraints are ignored.
+     */
+    private void discardConstraints(Collection<Constraint> constraints){
+        Set<Constraint> removedAliases = null;
+        for(Constraint constraint : constraints){
+            if(lazyBounds.remove(constraint) != null){
+                continue;
             }
-            if(leaving == null){
-                throw new InternalSolverError("internal solver error");
+            Tag tag = cns.get(constraint);
+            if(tag != null){
+                deleteConstraint(constraint, tag);
+            } else if(aliases.contains(constraint)){
+                if(removedAliases == null){
+                    removedAliases = new HashSet<Constraint>();
+                }
+                removedAliases.add(constraint);
             }
-
-            rows.remove(leaving);
-            row.solveFor(leaving, tag.marker);
-            substitute(tag.marker, row);
         }
-        optimize(objective);
+        if(removedAliases != null){
+            removeAliases(removedAliases);
+        }
     }
 
-    void removeConstraintEffects(Constraint constraint, Tag tag){
-        if(tag.marker.getType() == Symbol.Type.ERROR){
-            removeMarkerEffects(tag.marker, constraint.getStrength());
+    /**
+     * Remove a constraint wherever it is held, without optimizing the
+     * objective or checking lazy bounds. Unknown constraints are ignored.
+     */
+    private void discardConstraint(Constraint constraint){
+        if(lazyBounds.remove(constraint) != null){
+            return;
         }
-        else if(tag.other.getType() == Symbol.Type.ERROR){
-            removeMarkerEffects(tag.other, constraint.getStrength());
+        Tag tag = cns.get(constraint);
+        if(tag != null){
+            deleteConstraint(constraint, tag);
+        } else if(aliases.contains(constraint)){
+            removeAliases(Collections.singleton(constraint));
+        }
+    }
+
+    /**
+     * Get the variable of a required inequality over a single variable,
+     * or null if the constraint is not such a bound. Aliased variables are
+     * not eligible, as they have no symbol of their own.
+     */
+    private Variable boundedVariable(Constraint constraint){
+        if(constraint.getOp() == RelationalOperator.OP_EQ || strengthOf(constraint) < Strength.REQUIRED){
+            return null;
+        }
+
+        Variable variable = null;
+        for(Term term : constraint.getExpression().getTerms()){
+            if(Util.nearZero(term.getCoefficient())){
+                continue;
+            }
+            if(variable != null && term.getVariable() != variable){
+                return null;
+            }
+            variable = term.getVariable();
+        }
+
+        if(variable == null || aliases.get(variable) != null){
+            return null;
+        }
+        return variable;
+    }
+
+    /**
+     * Add the rows of lazy bounds which the current solution violates.
+     * <p/>
+     * Only the bounds of variables which moved since the last check are
+     * examined. Adding a bound moves other variables, so this repeats until
+     * no queued variable violates a bound.
+     *
+     * @throws UnsatisfiableConstraintException A violated bound cannot be
+     * satisfied. The bound stays lazy and its variable stays queued.
+     */
+    private void materializeBounds() throws UnsatisfiableConstraintException{
+        while(!boundChecks.isEmpty()){
+            Symbol symbol = boundChecks.pop();
+            List<Constraint> bounds = lazyBounds.get(symbol);
+            if(bounds == null){
+                continue;
+            }
+
+            for(int i = bounds.size() - 1; i >= 0; i--){
+                Constraint bound = bounds.get(i);
+                if(!isViolated(bound)){
+                    continue;
+                }
+
+                lazyBounds.remove(bound);
+                try {
+                    insertRow(bound, null);
+                } catch (UnsatisfiableConstraintException e) {
+                    lazyBounds.add(bound, symbol);
+                    boundChecks.add(symbol);
+                    throw e;
+                }
+                optimize(objective);
+            }
+        }
+    }
+
+    /**
+     * Add the rows of violated lazy bounds after a change which cannot
+     * make the required constraints inconsistent.
+     */
+    private void checkBounds(){
+        if(boundChecks.isEmpty()){
+            return;
+        }
+        try {
+            materializeBounds();
+        } catch (UnsatisfiableConstraintException e) {
+            throw new InternalSolverError("lazy bound cannot be satisfied");
+        }
+    }
+
+    private boolean isViolated(Constraint bound){
+        Expression expression = bound.getExpression();
+        double value = constantOf(bound);
+        for(Term term : expression.getTerms()){
+            if(Util.nearZero(term.getCoefficient())){
+                continue;
+            }
+            Row row = getRow(vars.get(term.getVariable()));
+            if(row != null){
+                value += term.getCoefficient() * row.getConstant();
+            }
+        }
+        if(Util.nearZero(value)){
+            return false;
+        }
+        return bound.getOp() == RelationalOperator.OP_LE ? value > 0.0 : value < 0.0;
+    }
+
+    /**
+     * Remove the row of a constraint from the tableau without optimizing
+     * the objective.
+     */
+    private void deleteConstraint(Constraint constraint, Tag tag){
+        deleteConstraintEntry(constraint, tag);
+        deleteRow(tag);
+    }
+
+    /**
+     * Forget a constraint while leaving its row in the tableau.
+     */
+    private void deleteConstraintEntry(Constraint constraint, Tag tag){
+        cns.remove(constraint);
+        if(tag.reference != null){
+            references.remove(tag.reference);
+            tag.reference.clear();
+            tag.reference = null;
+        }
+    }
+
+    /**
+     * Remove the row with the given tag from the tableau without
+     * optimizing the objective.
+     */
+    private void deleteRow(Tag tag){
+        removeConstraintEffects(tag);
+
+        Row row = removeRow(tag.marker);
+        if(row == null){
+            row = getMarkerLeavingRow(tag.marker);
+            if(row == null){
+                throw new InternalSolverError("internal solver error");
+            }
+
+            row = removeRow(row.basic);
+            Symbol leaving = row.basic;
+            row.solveFor(leaving, tag.marker);
+            substitute(tag.marker, row);
+        }
+        releaseSymbols(tag);
+    }
+
+    /**
+     * Try to absorb a required equality into the alias table instead of
+     * the tableau.
+     * <p/>
+     * The expression is first rewritten in terms of root variables. If at
+     * most two variables remain and one of them has never been seen by
+     * the tableau, that variable becomes an alias of the other one, or of
+     * a constant if it is the only one.
+     *
+     * @return true if the constraint was absorbed.
+     */
+    private boolean aliasConstraint(Constraint constraint){
+        if(constraint.getOp() != RelationalOperator.OP_EQ || strengthOf(constraint) < Strength.REQUIRED){
+            return false;
+        }
+
+        Expression expression = constraint.getExpression();
+        double constant = constantOf(constraint);
+        Variable first = null;
+        Variable second = null;
+        double firstCoefficient = 0.0;
+        double secondCoefficient = 0.0;
+
+        for(Term term : expression.getTerms()){
+            Variable variable = term.getVariable();
+            double coefficient = term.getCoefficient();
+            if(Util.nearZero(coefficient)){
+                continue;
+            }
+
+            AliasTable.Alias alias = aliases.get(variable);
+            if(alias != null){
+                constant += coefficient * alias.offset;
+                if(alias.root == null){
+                    continue;
+                }
+                variable = alias.root;
+                coefficient *= alias.scale;
+            }
+
+            if(variable == first){
+                firstCoefficient += coefficient;
+            } else if(variable == second){
+                secondCoefficient += coefficient;
+            } else if(first == null){
+                first = variable;
+                firstCoefficient = coefficient;
+            } else if(second == null){
+                second = variable;
+                secondCoefficient = coefficient;
+            } else {
+                return false;
+            }
+        }
+
+        if(second != null && Util.nearZero(secondCoefficient)){
+            second = null;
+        }
+        if(first != null && Util.nearZero(firstCoefficient)){
+            first = second;
+            firstCoefficient = secondCoefficient;
+            second = null;
+        }
+
+        Variable variable;
+        Variable root;
+        double coefficient;
+        double rootCoefficient;
+        if(first != null && isFresh(first)){
+            variable = first;
+            coefficient = firstCoefficient;
+            root = second;
+            rootCoefficient = secondCoefficient;
+        } else if(second != null && isFresh(second)){
+            variable = second;
+            coefficient = secondCoefficient;
+            root = first;
+            rootCoefficient = firstCoefficient;
+        } else {
+            return false;
+        }
+
+        if(root != null){
+            // Give the root a symbol so it can never be aliased itself.
+            getVarSymbol(root);
+        }
+
+        double scale = root == null ? 0.0 : -rootCoefficient / coefficient;
+        aliases.add(new AliasTable.Alias(constraint, variable, root, scale, -constant / coefficient));
+        recordAliasChange(variable);
+        snapshotVariablesAdded = true;
+        staleAliases.add(variable);
+        return true;
+    }
+
+    /**
+     * Have the alias of a variable derived again if the change to it is
+     * rolled back.
+     */
+    private void recordAliasChange(final Variable variable){
+        if(journal.isRecording()){
+            journal.add(new Journal.Entry() {
+                @Override
+                void undo() {
+                    staleAliases.add(variable);
+                }
+            });
+        }
+    }
+
+    /**
+     * Whether a variable has neither a symbol in the tableau nor an alias.
+     */
+    private boolean isFresh(Variable variable){
+        return !vars.containsKey(variable) && aliases.get(variable) == null;
+    }
+
+    /**
+     * Remove alias constraints.
+     * <p/>
+     * Later aliases and tableau rows may have been built by substituting
+     * the removed aliases. Every alias whose constraint mentions the
+     * variable of a removed alias is taken out as well, and so on for the
+     * aliases taken out, and these are derived again in the order they
+     * were first added. Then every constraint which mentions a variable
+     * whose alias moved is removed from the tableau and added again. Only
+     * the constraints of the variables involved are visited.
+     */
+    private void removeAliases(Set<Constraint> removed){
+        Map<Variable, AliasTable.Alias> previous = new HashMap<Variable, AliasTable.Alias>();
+        List<AliasTable.Alias> derived = new ArrayList<AliasTable.Alias>();
+        List<Variable> pending = new ArrayList<Variable>();
+        for(Constraint constraint : removed){
+            AliasTable.Alias alias = aliases.get(constraint);
+            aliases.remove(alias);
+            recordAliasChange(alias.variable);
+            previous.put(alias.variable, alias);
+            pending.add(alias.variable);
+        }
+        while(!pending.isEmpty()){
+            Set<Constraint> mentions = constraintsByVariable.get(pending.remove(pending.size() - 1));
+            if(mentions == null){
+                continue;
+            }
+            for(Constraint constraint : mentions){
+                AliasTable.Alias alias = aliases.get(constraint);
+                if(alias != null){
+                    aliases.remove(alias);
+                    recordAliasChange(alias.variable);
+                    previous.put(alias.variable, alias);
+                    derived.add(alias);
+                    pending.add(alias.variable);
+                }
+            }
+        }
+
+        Collections.sort(derived, new Comparator<AliasTable.Alias>() {
+            @Override
+            public int compare(AliasTable.Alias a, AliasTable.Alias b) {
+                return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+            }
+        });
+        List<Constraint> rebuild = new ArrayList<Constraint>();
+        Set<Variable> moved = new HashSet<Variable>();
+        for(AliasTable.Alias alias : derived){
+            if(aliasConstraint(alias.constraint)){
+                // Deriving it again may alias another of its variables.
+                Variable variable = aliases.get(alias.constraint).variable;
+                if(!previous.containsKey(variable)){
+                    moved.add(variable);
+                }
+            } else {
+                rebuild.add(alias.constraint);
+            }
+        }
+        for(AliasTable.Alias alias : previous.values()){
+            if(!alias.sameAs(aliases.get(alias.variable))){
+                moved.add(alias.variable);
+            }
+            staleAliases.add(alias.variable);
+        }
+
+        Set<Constraint> affected = new LinkedHashSet<Constraint>();
+        for(Variable variable : moved){
+            Set<Constraint> mentions = constraintsByVariable.get(variable);
+            if(mentions != null){
+                for(Constraint existing : mentions){
+                    if(cns.containsKey(existing)){
+                        affected.add(existing);
+                    }
+                }
+            }
+            EditInfo edit = edits.get(variable);
+            if(edit != null && edit.constraint != null){
+                affected.add(edit.constraint);
+            }
+        }
+        for(Constraint existing : affected){
+            deleteConstraint(existing, cns.get(existing));
+        }
+        rebuild.addAll(0, affected);
+
+        try {
+            for(Constraint existing : rebuild){
+                insertConstraint(existing);
+            }
+        } catch (KiwiException e) {
+            throw new InternalSolverError("failed to restore constraints after removing an alias");
+        }
+        optimize(objective);
+
+        // Rebuilt edit constraints have new tags, and their suggested
+        // values have to be applied to the new rows.
+        for(Variable variable : moved){
+            if(edits.containsKey(variable)){
+                EditInfo info = writableEdit(variable);
+                info.tag = cns.get(info.constraint);
+                double value = info.constant;
+                info.constant = 0.0;
+                applySuggestion(info, value);
+            }
+        }
+        dualOptimize();
+    }
+
+    void removeConstraintEffects(Tag tag){
+        if(tag.marker.getType() == Symbol.Type.ERROR){
+            removeMarkerEffects(tag.marker, tag.strength);
+        }
+        else if(tag.other.getType() == Symbol.Type.ERROR){
+            removeMarkerEffects(tag.other, tag.strength);
         }
     }
 
     void removeMarkerEffects(Symbol marker, double strength){
-        Row row = rows.get(marker);
+        Row row = getRow(marker);
         if(row != null){
-            objective.insert(row, -strength);
+            writableObjective().insert(row, -strength);
         }else {
-            objective.insert(marker, -strength);
+            writableObjective().insert(marker, -strength);
         }
     }
 
@@ -146,13 +1225,14 @@ public class Solver {
         Row second = null;
         Row third = null;
 
-        for(Symbol s: rows.keySet()){
-            Row candidateRow = rows.get(s);
+        ColumnIndex.RowSet column = columns.get(marker);
+        for(int i = 0; i < column.size(); i++){
+            Row candidateRow = column.get(i);
             double c = candidateRow.coefficientFor(marker);
             if(c == 0.0){
                 continue;
             }
-            if(s.getType() == Symbol.Type.EXTERNAL){
+            if(candidateRow.basic.getType() == Symbol.Type.EXTERNAL){
                 third = candidateRow;
             }
             else if(c < 0.0){
@@ -181,7 +1261,299 @@ public class Solver {
     }
 
     public boolean hasConstraint(Constraint constraint){
-        return cns.containsKey(constraint);
+        return cns.containsKey(constraint) || aliases.contains(constraint) || lazyBounds.contains(constraint);
+    }
+
+    /**
+     * Get the constraints in the solver which mention a variable,
+     * including disabled ones.
+     *
+     * @return A read only view, which is empty if there are none. It
+     * need not follow later changes to the solver.
+     */
+    public Set<Constraint> getConstraints(Variable variable){
+        Set<Constraint> constraints = constraintsByVariable.get(variable);
+        if(constraints == null){
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(constraints);
+    }
+
+    /**
+     * Remove a variable from the solver.
+     * <p/>
+     * Every constraint which mentions the variable is removed, as is its
+     * edit variable if it has one. Then the tableau symbol of the variable
+     * is released for reuse, so a solver whose variables come and go does
+     * not keep growing. The variable keeps its last value. It may be used
+     * in new constraints afterwards, and gets a new symbol when it is.
+     * Variables which the solver does not know are ignored.
+     */
+    public void removeVariable(Variable variable){
+        if(edits.containsKey(variable)){
+            try {
+                removeEditVariable(variable);
+            } catch (UnknownEditVariableException e) {
+                throw new InternalSolverError("edit variable disappeared");
+            }
+        }
+
+        Set<Constraint> constraints = constraintsByVariable.get(variable);
+        if(constraints != null){
+            try {
+                removeConstraints(new ArrayList<Constraint>(constraints));
+            } catch (UnknownConstraintException e) {
+                throw new InternalSolverError("indexed constraint was not in the solver");
+            }
+        }
+        staleAliases.remove(variable);
+
+        Symbol symbol = vars.remove(variable);
+        if(symbol == null){
+            return;
+        }
+
+        // Without constraints the variable cannot appear in the tableau,
+        // so this only clears cells left behind by round off.
+        removeRow(symbol);
+        ColumnIndex.RowSet column = columns.get(symbol);
+        for(int i = column.size() - 1; i >= 0; i--){
+            writableRow(column.get(i)).remove(symbol);
+        }
+
+        forgetVariableSymbol(symbol);
+    }
+
+    /**
+     * Drop the link from a variable symbol back to its variable and
+     * release the symbol.
+     */
+    private void forgetVariableSymbol(Symbol symbol){
+        if(weakReferences){
+            VariableReference reference = variableReferences[symbol.getId()];
+            variableReferences[symbol.getId()] = null;
+            references.remove(reference);
+            reference.clear();
+        } else {
+            setVariable(symbol.getId(), null);
+        }
+        if(dirtyVariables.contains(symbol)){
+            // The id must not be reused until updateVariables has taken
+            // the symbol off the worklist.
+            releaseLater(symbol);
+        } else {
+            releaseSymbol(symbol);
+        }
+    }
+
+    /**
+     * Take a constraint out of the solver, keeping its terms resolved to
+     * tableau symbols so that enableConstraint can put it back without
+     * looking its variables up again. A disabled constraint is not
+     * reported by hasConstraint. Its constant and strength may still be
+     * changed, but its terms must not be. Disabling a disabled constraint
+     * does nothing.
+     *
+     * @throws UnknownConstraintException The constraint is neither in the solver nor disabled.
+     */
+    public void disableConstraint(Constraint constraint) throws UnknownConstraintException {
+        disableConstraints(Collections.singletonList(constraint));
+    }
+
+    /**
+     * Disable a batch of constraints, optimizing the objective once at the
+     * end.
+     *
+     * @throws UnknownConstraintException A constraint is neither in the solver nor disabled.
+     *                                    No constraints are disabled in this case.
+     */
+    public void disableConstraints(Collection<Constraint> constraints) throws UnknownConstraintException {
+        for (Constraint constraint : constraints) {
+            if (!hasConstraint(constraint) && !disabled.containsKey(constraint)) {
+                throw new UnknownConstraintException(constraint);
+            }
+        }
+
+        List<Constraint> enabled = new ArrayList<Constraint>(constraints.size());
+        for (Constraint constraint : constraints) {
+            if (hasConstraint(constraint) && !disabled.containsKey(constraint)) {
+                disabled.put(constraint, prepareTerms(constraint));
+                enabled.add(constraint);
+            }
+        }
+        discardConstraints(enabled);
+        optimize(objective);
+        checkBounds();
+    }
+
+    /**
+     * Put a disabled constraint back into the solver. Enabling a constraint
+     * which is in the solver does nothing.
+     *
+     * @throws UnknownConstraintException       The constraint is neither in the solver nor disabled.
+     * @throws UnsatisfiableConstraintException The constraint is required and cannot be satisfied.
+     *                                          It stays disabled.
+     */
+    public void enableConstraint(Constraint constraint) throws UnknownConstraintException, UnsatisfiableConstraintException {
+        if (!disabled.containsKey(constraint)) {
+            if (hasConstraint(constraint)) {
+                return;
+            }
+            throw new UnknownConstraintException(constraint);
+        }
+
+        reinsertConstraint(constraint);
+        optimize(objective);
+
+        if (!boundChecks.isEmpty()) {
+            try {
+                materializeBounds();
+            } catch (UnsatisfiableConstraintException e) {
+                disableConstraint(constraint);
+                throw new UnsatisfiableConstraintException(constraint);
+            }
+        }
+    }
+
+    /**
+     * Enable a batch of disabled constraints, optimizing the objective
+     * once at the end.
+     * <p/>
+     * If a constraint cannot be enabled, the constraints before it in the
+     * batch are enabled and the ones after it stay disabled, as with
+     * addConstraints, and a conflict with a lazy bound is found the same
+     * way.
+     *
+     * @throws UnknownConstraintException       A constraint is neither in the solver nor disabled.
+     *                                          No constraints are enabled in this case.
+     * @throws UnsatisfiableConstraintException A constraint is required and cannot be satisfied.
+     */
+    public void enableConstraints(Collection<Constraint> constraints) throws UnknownConstraintException, UnsatisfiableConstraintException {
+        for (Constraint constraint : constraints) {
+            if (!disabled.containsKey(constraint) && !hasConstraint(constraint)) {
+                throw new UnknownConstraintException(constraint);
+            }
+        }
+
+        List<Constraint> enabled = new ArrayList<Constraint>(constraints.size());
+        try {
+            for (Constraint constraint : constraints) {
+                if (disabled.containsKey(constraint)) {
+                    reinsertConstraint(constraint);
+                    enabled.add(constraint);
+                }
+            }
+        } catch (UnsatisfiableConstraintException e) {
+            settleEnabled(enabled);
+            throw e;
+        }
+        settleEnabled(enabled);
+    }
+
+    /**
+     * Optimize after enabling a batch of constraints, which may have
+     * stopped part way, and add the lazy bounds they violate.
+     */
+    private void settleEnabled(List<Constraint> enabled) throws UnknownConstraintException, UnsatisfiableConstraintException {
+        optimize(objective);
+        if (boundChecks.isEmpty()) {
+            return;
+        }
+        try {
+            materializeBounds();
+        } catch (UnsatisfiableConstraintException e) {
+            throw new UnsatisfiableConstraintException(bisectBatch(enabled, true));
+        }
+    }
+
+    /**
+     * Whether the constraint has been disabled and not enabled or removed
+     * since.
+     */
+    public boolean isConstraintDisabled(Constraint constraint) {
+        return disabled.containsKey(constraint);
+    }
+
+    /**
+     * Name a group of constraints so that they can be enabled and disabled
+     * together. A constraint may be in several groups. Defining a group
+     * again replaces its constraints.
+     */
+    public void defineGroup(String name, Collection<Constraint> constraints) {
+        groups.put(name, new ArrayList<Constraint>(constraints));
+    }
+
+    public void removeGroup(String name) {
+        groups.remove(name);
+    }
+
+    /**
+     * Disable the constraints of a group. Constraints which are already
+     * disabled are left alone.
+     *
+     * @throws UnknownConstraintException A constraint of the group has not been added to the solver.
+     */
+    public void disableGroup(String name) throws UnknownConstraintException {
+        disableConstraints(getGroup(name));
+    }
+
+    /**
+     * Enable the constraints of a group. Constraints which are already
+     * enabled are left alone.
+     *
+     * @throws UnknownConstraintException       A constraint of the group has not been added to the solver.
+     * @throws UnsatisfiableConstraintException A constraint is required and cannot be satisfied.
+     */
+    public void enableGroup(String name) throws UnknownConstraintException, UnsatisfiableConstraintException {
+        enableConstraints(getGroup(name));
+    }
+
+    private List<Constraint> getGroup(String name) {
+        List<Constraint> group = groups.get(name);
+        if (group == null) {
+            throw new IllegalArgumentException("unknown constraint group " + name);
+        }
+        return group;
+    }
+
+    /**
+     * Insert a disabled constraint from its prepared terms without
+     * optimizing the objective. It stays disabled if it cannot be inserted.
+     */
+    private void reinsertConstraint(Constraint constraint) throws UnsatisfiableConstraintException {
+        PreparedTerms prepared = disabled.remove(constraint);
+        try {
+            insertConstraint(constraint, prepared);
+        } catch (DuplicateConstraintException e) {
+            throw new InternalSolverError("disabled constraint was still present");
+        } catch (UnsatisfiableConstraintException e) {
+            disabled.put(constraint, prepared);
+            throw e;
+        }
+    }
+
+    /**
+     * Resolve the terms of a constraint to the symbols of their variables,
+     * or return null if a variable has no symbol because it is aliased.
+     */
+    private PreparedTerms prepareTerms(Constraint constraint) {
+        List<Term> terms = constraint.getExpression().getTerms();
+        Symbol[] symbols = new Symbol[terms.size()];
+        double[] coefficients = new double[terms.size()];
+        int count = 0;
+        for (Term term : terms) {
+            if (Util.nearZero(term.getCoefficient())) {
+                continue;
+            }
+            Symbol symbol = vars.get(term.getVariable());
+            if (symbol == null) {
+                return null;
+            }
+            symbols[count] = symbol;
+            coefficients[count] = term.getCoefficient();
+            count++;
+        }
+        return new PreparedTerms(Arrays.copyOf(symbols, count), Arrays.copyOf(coefficients, count));
     }
 
     public void addEditVariable(Variable variable, double strength) throws DuplicateEditVariableException, RequiredFailureException{
@@ -208,8 +1580,24 @@ public class Solver {
         }
 
 
-        EditInfo info = new EditInfo(constraint, cns.get(constraint), 0.0);
+        // The edit constraint is private to the solver, so it is not
+        // reported as one of the variable's constraints.
+        unindexConstraint(constraint);
+
+        Tag tag = cns.get(constraint);
+        if (weakReferences) {
+            // The edit constraint references the variable, so holding it
+            // would keep the variable alive. Its row is tracked by its tag
+            // alone and removed along with the variable instead.
+            deleteConstraintEntry(constraint, tag);
+            constraint = null;
+        }
+
+        EditInfo info = new EditInfo(owner, constraint, tag, 0.0);
         edits.put(variable, info);
+        if (weakReferences) {
+            variableReferences[vars.get(variable).getId()].edit = info;
+        }
     }
 
     public void removeEditVariable(Variable variable) throws UnknownEditVariableException{
@@ -218,72 +1606,518 @@ public class Solver {
             throw new UnknownEditVariableException();
         }
 
-        try {
-            removeConstraint(edit.constraint);
-        } catch (UnknownConstraintException e) {
-            e.printStackTrace();
+        if (edit.constraint != null) {
+            try {
+                removeConstraint(edit.constraint);
+            } catch (UnknownConstraintException e) {
+                e.printStackTrace();
+            }
+        } else {
+            variableReferences[vars.get(variable).getId()].edit = null;
+            deleteRow(edit.tag);
+            optimize(objective);
+            checkBounds();
+        }
+
+        edits.remove(variable);
+    }
+
+    public boolean hasEditVariable(Variable variable){
+        return edits.containsKey(variable);
+    }
+
+    public void suggestValue(Variable variable, double value) throws UnknownEditVariableException{
+        if(!edits.containsKey(variable)){
+            throw new UnknownEditVariableException();
+        }
+
+        applySuggestion(writableEdit(variable), value);
+        dualOptimize();
+        checkBounds();
+    }
+
+    /**
+     * Suggest values for several edit variables at once.
+     * <p/>
+     * The constant of every edit is updated before the tableau is
+     * reoptimized, so the dual simplex runs once for the whole batch
+     * instead of once per variable. If the same variable appears more
+     * than once, the last value wins.
+     *
+     * @throws UnknownEditVariableException One of the variables is not an edit variable.
+     *                                      No values are applied in this case.
+     */
+    public void suggestValues(Variable[] variables, double[] values) throws UnknownEditVariableException{
+        if(variables.length != values.length){
+            throw new IllegalArgumentException("variables and values differ in length");
+        }
+
+        for(Variable variable : variables){
+            if(!edits.containsKey(variable)){
+                throw new UnknownEditVariableException();
+            }
+        }
+
+        for(int i = 0; i < variables.length; i++){
+            applySuggestion(writableEdit(variables[i]), values[i]);
+        }
+        dualOptimize();
+        checkBounds();
+    }
+
+    /**
+     * The edit of a variable, copied first if it is shared with a fork.
+     */
+    private EditInfo writableEdit(Variable variable){
+        EditInfo info = edits.get(variable);
+        if(info.owner != owner){
+            info = new EditInfo(owner, info.constraint, info.tag, info.constant);
+            edits.put(variable, info);
+        }
+        return info;
+    }
+
+    /**
+     * Move the constant of a writable edit constraint to the given value
+     * and queue any rows that become infeasible. The caller is responsible
+     * for running the dual optimizer afterwards.
+     */
+    private void applySuggestion(EditInfo info, double value){
+        double delta = value - info.constant;
+        info.constant = value;
+
+        // The edit constraint is v - value == 0 with the error plus marker
+        // at -1, so raising the value by delta shifts the marker by delta.
+        shiftMarker(info.tag, delta);
+    }
+
+    /**
+     * Change the constant of a constraint in place.
+     * <p/>
+     * The change is applied through the constraint's marker symbols, the
+     * same way suggestValue moves an edit constraint, and the dual
+     * optimizer then restores feasibility. Nothing is rebuilt. Required
+     * equalities whose marker is basic, constraints absorbed by the
+     * presolve and lazy bounds which become active are removed and added
+     * again instead.
+     * <p/>
+     * The constraint object keeps its own constant. The new one belongs
+     * to this solver, and is forgotten when the constraint is removed.
+     *
+     * @throws UnknownConstraintException       The constraint has not been added to the solver.
+     * @throws UnsatisfiableConstraintException The constraint is required and cannot be satisfied
+     *                                          with the new constant. The old constant is restored.
+     */
+    public void updateConstant(Constraint constraint, double constant) throws UnknownConstraintException, UnsatisfiableConstraintException {
+        double oldConstant = constantOf(constraint);
+
+        if (disabled.containsKey(constraint)) {
+            setConstant(constraint, constant);
+            return;
+        }
+
+        Tag tag = cns.get(constraint);
+        if (tag == null && !aliases.contains(constraint) && !lazyBounds.contains(constraint)) {
+            throw new UnknownConstraintException(constraint);
+        }
+        if (constant == oldConstant) {
+            return;
+        }
+        if (tag == null) {
+            if (lazyBounds.contains(constraint)) {
+                setConstant(constraint, constant);
+                if (!isViolated(constraint)) {
+                    return;
+                }
+                setConstant(constraint, oldConstant);
+            }
+            replaceConstraint(constraint, constant, strengthOf(constraint));
+            return;
+        }
+
+        if (tag.marker.getType() == Symbol.Type.DUMMY && dummyMustStayZero(tag.marker)) {
+            replaceConstraint(constraint, constant, strengthOf(constraint));
+            return;
+        }
+
+        // The constraint reads expression + k * marker + ... == 0, so
+        // raising its constant by delta is the same as shifting the marker
+        // by delta / k.
+        double shift = (constant - oldConstant) / markerCoefficient(constraint);
+        shiftMarker(tag, shift);
+        setConstant(constraint, constant);
+
+        boolean feasible = tryDualOptimize();
+        if (feasible && !boundChecks.isEmpty()) {
+            try {
+                materializeBounds();
+            } catch (UnsatisfiableConstraintException e) {
+                feasible = false;
+            }
+        }
+
+        if (!feasible) {
+            shiftMarker(tag, -shift);
+            setConstant(constraint, oldConstant);
+            queueInfeasibleRows();
+            dualOptimize();
+            checkBounds();
+            throw new UnsatisfiableConstraintException(constraint);
+        }
+    }
+
+    /**
+     * Change the strength of a constraint.
+     * <p/>
+     * The strength of a non-required constraint only weights its error
+     * symbols in the objective, so those coefficients are adjusted in
+     * place and the objective is optimized again. A constraint which
+     * becomes required or stops being required is removed and added
+     * again instead, as its row has a different shape.
+     * <p/>
+     * As with updateConstant, the constraint object keeps its own strength.
+     *
+     * @throws UnknownConstraintException       The constraint has not been added to the solver.
+     * @throws UnsatisfiableConstraintException The constraint becomes required and cannot be
+     *                                          satisfied. The old strength is restored.
+     */
+    public void setStrength(Constraint constraint, double strength) throws UnknownConstraintException, UnsatisfiableConstraintException {
+        strength = Strength.clip(strength);
+        double oldStrength = strengthOf(constraint);
+
+        if (disabled.containsKey(constraint)) {
+            setStrengthOf(constraint, strength);
+            return;
+        }
+
+        Tag tag = cns.get(constraint);
+        if (tag == null && !aliases.contains(constraint) && !lazyBounds.contains(constraint)) {
+            throw new UnknownConstraintException(constraint);
+        }
+        if (strength == oldStrength) {
+            return;
+        }
+        if (tag == null || oldStrength >= Strength.REQUIRED || strength >= Strength.REQUIRED) {
+            replaceConstraint(constraint, constantOf(constraint), strength);
+            return;
+        }
+
+        if (tag.owner != owner) {
+            tag = tag.copy(owner);
+            cns.put(constraint, tag);
+        }
+        reweight(tag, strength);
+        setStrengthOf(constraint, strength);
+        optimize(objective);
+        checkBounds();
+    }
+
+    /**
+     * Change the strength of an edit variable in place.
+     *
+     * @throws UnknownEditVariableException The variable is not an edit variable.
+     * @throws RequiredFailureException     The strength is required, which edit variables cannot be.
+     */
+    public void setEditStrength(Variable variable, double strength) throws UnknownEditVariableException, RequiredFailureException {
+        EditInfo info = edits.get(variable);
+        if (info == null) {
+            throw new UnknownEditVariableException();
+        }
+
+        strength = Strength.clip(strength);
+        if (strength == Strength.REQUIRED) {
+            throw new RequiredFailureException();
+        }
+        if (strength == info.tag.strength) {
+            return;
+        }
+
+        info = writableEdit(variable);
+        if (info.tag.owner != owner) {
+            info.tag = info.tag.copy(owner);
+            if (info.constraint != null) {
+                cns.put(info.constraint, info.tag);
+            }
+        }
+        reweight(info.tag, strength);
+        if (info.constraint != null) {
+            // Rebuilding the edit row after an alias is removed reads it.
+            setStrengthOf(info.constraint, strength);
+        }
+        optimize(objective);
+        checkBounds();
+    }
+
+    /**
+     * Move the weights of the error symbols of a non-required constraint
+     * in the objective to a new strength. The tag must be writable.
+     */
+    private void reweight(Tag tag, double strength) {
+        double delta = strength - tag.strength;
+        if (tag.marker.getType() == Symbol.Type.ERROR) {
+            removeMarkerEffects(tag.marker, -delta);
+        }
+        if (tag.other.getType() == Symbol.Type.ERROR) {
+            removeMarkerEffects(tag.other, -delta);
+        }
+        tag.strength = strength;
+    }
+
+    /**
+     * Change the constant and strength of a constraint by removing it and
+     * adding it again, restoring the old ones if the constraint is then
+     * unsatisfiable.
+     */
+    private void replaceConstraint(Constraint constraint, double constant, double strength) throws UnknownConstraintException, UnsatisfiableConstraintException {
+        double oldConstant = constantOf(constraint);
+        double oldStrength = strengthOf(constraint);
+
+        // Removing the constraint drops its state, and it is added again
+        // from the state given to it here.
+        removeConstraint(constraint);
+        constraintStates.put(constraint, new ConstraintState(constant, strength));
+        try {
+            addConstraint(constraint);
+        } catch (DuplicateConstraintException e) {
+            throw new InternalSolverError("constraint was still present after removal");
+        } catch (UnsatisfiableConstraintException e) {
+            constraintStates.put(constraint, new ConstraintState(oldConstant, oldStrength));
+            try {
+                addConstraint(constraint);
+            } catch (KiwiException restoreFailed) {
+                throw new InternalSolverError("failed to restore constraint");
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The coefficient of the marker symbol in the row built by createRow,
+     * before the row's sign is normalized.
+     */
+    private double markerCoefficient(Constraint constraint) {
+        switch (constraint.getOp()) {
+            case OP_LE:
+                return 1.0;
+            case OP_GE:
+                return -1.0;
+            default:
+                return strengthOf(constraint) < Strength.REQUIRED ? -1.0 : 1.0;
+        }
+    }
+
+    /**
+     * Whether shifting a dummy marker would move a row whose basic symbol
+     * must stay at zero. The dual optimizer cannot repair such rows.
+     */
+    private boolean dummyMustStayZero(Symbol marker) {
+        if (getRow(marker) != null) {
+            return true;
+        }
+        ColumnIndex.RowSet column = columns.get(marker);
+        for (int i = 0; i < column.size(); i++) {
+            if (column.get(i).basic.getType() == Symbol.Type.DUMMY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the marker symbol m of a constraint by m' + shift throughout
+     * the tableau, queueing rows which become infeasible. The other symbol
+     * of the constraint always has the opposite coefficient to the marker,
+     * so it moves by -shift.
+     */
+    private void shiftMarker(Tag tag, double shift){
+        Row row = getRow(tag.marker);
+        if(row != null){
+            if(writableRow(row).add(-shift) < 0.0){
+                queueInfeasible(tag.marker);
+            }
+            return;
+        }
+
+        row = getRow(tag.other);
+        if(row != null){
+            if(writableRow(row).add(shift) < 0.0){
+                queueInfeasible(tag.other);
+            }
+            return;
+        }
+
+        ColumnIndex.RowSet column = columns.get(tag.marker);
+        for(int i = 0; i < column.size(); i++){
+            Row currentRow = column.get(i);
+            double coefficient = currentRow.coefficientFor(tag.marker);
+            if(coefficient == 0.0){
+                continue;
+            }
+            markDirty(currentRow.basic);
+            if(writableRow(currentRow).add(shift * coefficient) < 0.0 && currentRow.basic.getType() != Symbol.Type.EXTERNAL){
+                queueInfeasible(currentRow.basic);
+            }
+        }
+    }
+
+    /**
+     * Update the values of the external solver variables.
+     * <p/>
+     * Only variables whose row has changed since the last update are
+     * visited, and only those whose value actually differs are written.
+     *
+     * Registered listeners are notified once with the changes after all
+     * of the variables have been written.
+     *
+     * @return The variables whose value changed, or an empty set.
+     */
+    public Set<Variable> updateVariables() {
+        reclaimCollected();
+        if (valueWriter.solver != this) {
+            // A fork, or the solver this one was forked from, has written
+            // the shared variables since.
+            markAllVariablesDirty();
+            valueWriter.solver = this;
+        }
+        if (dirtyVariables.isEmpty() && staleAliases.isEmpty()) {
+            if (publishSnapshots && snapshotVariablesAdded) {
+                publishSnapshot(Collections.<Variable>emptySet());
+            }
+            return Collections.emptySet();
+        }
+
+        Set<Variable> changed = new LinkedHashSet<Variable>();
+        List<VariableChange> changes = listeners.isEmpty() ? null : new ArrayList<VariableChange>();
+        while (!dirtyVariables.isEmpty()) {
+            Symbol symbol = dirtyVariables.pop();
+            Variable variable = variableFor(symbol);
+            if (variable == null) {
+                continue;
+            }
+            Row row = getRow(symbol);
+            updateValue(variable, row == null ? 0 : row.getConstant(), changed, changes);
+        }
+        if (!releasedVariableSymbols.isEmpty()) {
+            for (Symbol symbol : releasedVariableSymbols) {
+                releaseSymbol(symbol);
+            }
+            if (journal.isRecording()) {
+                final List<Symbol> released = new ArrayList<Symbol>(releasedVariableSymbols);
+                journal.add(new Journal.Entry() {
+                    @Override
+                    void undo() {
+                        releasedVariableSymbols.addAll(released);
+                    }
+                });
+            }
+            releasedVariableSymbols.clear();
         }
 
-        edits.remove(variable);
-    }
+        if (!aliases.isEmpty()) {
+            for (Variable root : changed) {
+                Collection<AliasTable.Alias> dependents = aliases.dependents(root);
+                if (dependents != null) {
+                    for (AliasTable.Alias alias : dependents) {
+                        staleAliases.add(alias.variable);
+                    }
+                }
+            }
+        }
+        for (Variable variable : staleAliases) {
+            AliasTable.Alias alias = aliases.get(variable);
+            if (alias != null) {
+                double root = alias.root == null ? 0.0 : alias.root.getValue();
+                updateValue(variable, alias.scale * root + alias.offset, changed, changes);
+            }
+        }
+        staleAliases.clear();
 
-    public boolean hasEditVariable(Variable variable){
-        return edits.containsKey(variable);
+        if (publishSnapshots && (snapshotVariablesAdded || !changed.isEmpty())) {
+            publishSnapshot(changed);
+        }
+        if (changes != null && !changes.isEmpty()) {
+            List<VariableChange> readOnly = Collections.unmodifiableList(changes);
+            for (VariableChangeListener listener : new ArrayList<VariableChangeListener>(listeners)) {
+                listener.variablesChanged(readOnly);
+            }
+        }
+        return changed;
     }
 
-    public void suggestValue(Variable variable, double value) throws UnknownEditVariableException{
-        EditInfo info = edits.get(variable);
-        if(info == null){
-            throw new UnknownEditVariableException();
+    /**
+     * Queue every variable to be written by the next update, after another
+     * solver sharing them has written its own values.
+     */
+    private void markAllVariablesDirty() {
+        for (Symbol symbol : vars.values()) {
+            dirtyVariables.add(symbol);
         }
+        for (AliasTable.Alias alias : aliases.aliases()) {
+            staleAliases.add(alias.variable);
+        }
+    }
 
-        double delta = value - info.constant;
-        info.constant = value;
-
-        Row row = rows.get(info.tag.marker);
-        if(row != null){
-            if(row.add(-delta) < 0.0){
-                infeasibleRows.add(info.tag.marker);
+    /**
+     * Publish the current values. The previous snapshot is copied and the
+     * changed values written over it, unless variables were added since,
+     * in which case the index is rebuilt.
+     */
+    private void publishSnapshot(Set<Variable> changed) {
+        ValueSnapshot previous = snapshot;
+        long version = previous == null ? 1 : previous.getVersion() + 1;
+        if (previous == null || snapshotVariablesAdded) {
+            Map<Variable, Integer> indices = new HashMap<Variable, Integer>();
+            for (Variable variable : vars.keySet()) {
+                indices.put(variable, indices.size());
+            }
+            for (AliasTable.Alias alias : aliases.aliases()) {
+                if (!indices.containsKey(alias.variable)) {
+                    indices.put(alias.variable, indices.size());
+                }
             }
-			dualOptimize();
+            double[] values = new double[indices.size()];
+            for (Map.Entry<Variable, Integer> entry : indices.entrySet()) {
+                values[entry.getValue()] = entry.getKey().getValue();
+            }
+            snapshotVariablesAdded = false;
+            snapshot = new ValueSnapshot(version, Collections.unmodifiableMap(indices), values);
             return;
         }
 
-        row = rows.get(info.tag.other);
-        if(row != null){
-            if(row.add(delta) < 0.0){
-                infeasibleRows.add(info.tag.other);
+        // Removed variables stay in the index with their last value, as
+        // they do in the variables themselves.
+        Map<Variable, Integer> indices = previous.getIndices();
+        double[] values = previous.getValues().clone();
+        for (Variable variable : changed) {
+            Integer index = indices.get(variable);
+            if (index != null) {
+                values[index] = variable.getValue();
             }
-			dualOptimize();
-            return;
         }
+        snapshot = new ValueSnapshot(version, indices, values);
+    }
 
-        for(Symbol s: rows.keySet()){
-            Row currentRow = rows.get(s);
-            double coefficient = currentRow.coefficientFor(info.tag.marker);
-            if(coefficient != 0.0 && currentRow.add(delta * coefficient) < 0.0 && s.getType() != Symbol.Type.EXTERNAL){
-                infeasibleRows.add(s);
+    private static void updateValue(Variable variable, double value, Set<Variable> changed, List<VariableChange> changes) {
+        double oldValue = variable.getValue();
+        if (oldValue != value) {
+            variable.setValue(value);
+            changed.add(variable);
+            if (changes != null) {
+                changes.add(new VariableChange(variable, oldValue, value));
             }
         }
-
-        dualOptimize();
     }
 
     /**
-     * Update the values of the external solver variables.
+     * Register a listener to be notified of the variables changed by each
+     * call to updateVariables.
      */
-    public void updateVariables() {
-
-        for (Map.Entry<Variable, Symbol> varEntry : vars.entrySet()) {
-            Variable variable = varEntry.getKey();
-            Row row = this.rows.get(varEntry.getValue());
+    public void addVariableChangeListener(VariableChangeListener listener) {
+        listeners.add(listener);
+    }
 
-            if (row == null) {
-                variable.setValue(0);
-            } else {
-                variable.setValue(row.getConstant());
-            }
-        }
+    public void removeVariableChangeListener(VariableChangeListener listener) {
+        listeners.remove(listener);
     }
 
 
@@ -305,19 +2139,49 @@ public class Solver {
      * for tracking the movement of the constraint in the tableau.
      */
     Row createRow(Constraint constraint, Tag tag) {
-        Expression expression = constraint.getExpression();
-        Row row = new Row(expression.getConstant());
-
-        for (Term term : expression.getTerms()) {
-            if (!Util.nearZero(term.getCoefficient())) {
-                Symbol symbol = getVarSymbol(term.getVariable());
+        return createRow(constraint, tag, null);
+    }
 
-                Row otherRow = rows.get(symbol);
+    private Row createRow(Constraint constraint, Tag tag, PreparedTerms prepared) {
+        Expression expression = constraint.getExpression();
+        Row row = rowFactory.createRow(constantOf(constraint));
+        double strength = strengthOf(constraint);
 
+        if (prepared != null) {
+            for (int i = 0; i < prepared.symbols.length; i++) {
+                Symbol symbol = prepared.symbols[i];
+                Row otherRow = getRow(symbol);
                 if (otherRow == null) {
-                    row.insert(symbol, term.getCoefficient());
+                    row.insert(symbol, prepared.coefficients[i]);
                 } else {
-                    row.insert(otherRow, term.getCoefficient());
+                    row.insert(otherRow, prepared.coefficients[i]);
+                }
+            }
+        } else {
+            for (Term term : expression.getTerms()) {
+                if (!Util.nearZero(term.getCoefficient())) {
+                    Variable variable = term.getVariable();
+                    double coefficient = term.getCoefficient();
+
+                    AliasTable.Alias alias = aliases.isEmpty() ? null : aliases.get(variable);
+                    if (alias != null) {
+                        row.add(coefficient * alias.offset);
+                        if (alias.root == null) {
+                            continue;
+                        }
+                        variable = alias.root;
+                        coefficient *= alias.scale;
+                    }
+
+                    Symbol symbol = getVarSymbol(variable);
+
+                    Row otherRow = getRow(symbol);
+
+                    if (otherRow == null) {
+                        row.insert(symbol, coefficient);
+                    } else {
+                        row.insert(otherRow, coefficient);
+                    }
                 }
             }
         }
@@ -326,29 +2190,29 @@ public class Solver {
             case OP_LE:
             case OP_GE: {
                 double coeff = constraint.getOp() == RelationalOperator.OP_LE ? 1.0 : -1.0;
-                Symbol slack = new Symbol(Symbol.Type.SLACK);
+                Symbol slack = newSymbol(Symbol.Type.SLACK);
                 tag.marker = slack;
                 row.insert(slack, coeff);
-                if (constraint.getStrength() < Strength.REQUIRED) {
-                    Symbol error = new Symbol(Symbol.Type.ERROR);
+                if (strength < Strength.REQUIRED) {
+                    Symbol error = newSymbol(Symbol.Type.ERROR);
                     tag.other = error;
                     row.insert(error, -coeff);
-                    this.objective.insert(error, constraint.getStrength());
+                    writableObjective().insert(error, strength);
                 }
                 break;
             }
             case OP_EQ: {
-                if (constraint.getStrength() < Strength.REQUIRED) {
-                    Symbol errplus = new Symbol(Symbol.Type.ERROR);
-                    Symbol errminus = new Symbol(Symbol.Type.ERROR);
+                if (strength < Strength.REQUIRED) {
+                    Symbol errplus = newSymbol(Symbol.Type.ERROR);
+                    Symbol errminus = newSymbol(Symbol.Type.ERROR);
                     tag.marker = errplus;
                     tag.other = errminus;
                     row.insert(errplus, -1.0); // v = eplus - eminus
                     row.insert(errminus, 1.0); // v - eplus + eminus = 0
-                    this.objective.insert(errplus, constraint.getStrength());
-                    this.objective.insert(errminus, constraint.getStrength());
+                    writableObjective().insert(errplus, strength);
+                    writableObjective().insert(errminus, strength);
                 } else {
-                    Symbol dummy = new Symbol(Symbol.Type.DUMMY);
+                    Symbol dummy = newSymbol(Symbol.Type.DUMMY);
                     tag.marker = dummy;
                     row.insert(dummy);
                 }
@@ -377,9 +2241,9 @@ public class Solver {
      */
     private static Symbol chooseSubject(Row row, Tag tag) {
 
-        for (Map.Entry<Symbol, Double> cell : row.getCells().entrySet()) {
-            if (cell.getKey().getType() == Symbol.Type.EXTERNAL) {
-                return cell.getKey();
+        for (int i = 0; i < row.cellCount(); i++) {
+            if (row.symbolAt(i).getType() == Symbol.Type.EXTERNAL) {
+                return row.symbolAt(i);
             }
         }
         if (tag.marker.getType() == Symbol.Type.SLACK || tag.marker.getType() == Symbol.Type.ERROR) {
@@ -390,7 +2254,7 @@ public class Solver {
             if (row.coefficientFor(tag.other) < 0.0)
                 return tag.other;
         }
-        return new Symbol();
+        return Symbol.INVALID_SYMBOL;
     }
 
     /**
@@ -403,10 +2267,10 @@ public class Solver {
 
         // Create and add the artificial variable to the tableau
 
-        Symbol art = new Symbol(Symbol.Type.SLACK);
-        rows.put(art, new Row(row));
+        Symbol art = newSymbol(Symbol.Type.SLACK);
+        addRow(art, row.copy());
 
-        this.artificial = new Row(row);
+        this.artificial = row.copy();
 
         // Optimize the artificial objective. This is successful
         // only if the artificial objective is optimized to zero.
@@ -417,25 +2281,16 @@ public class Solver {
         // If the artificial variable is basic, pivot the row so that
         // it becomes basic. If the row is constant, exit early.
 
-        Row rowptr = this.rows.get(art);
+        Row rowptr = removeRow(art);
 
         if (rowptr != null) {
 
-            /**this looks wrong!!!*/
-            //rows.remove(rowptr);
-
-            LinkedList<Symbol> deleteQueue = new LinkedList<>();
-            for(Symbol s: rows.keySet()){
-                if(rows.get(s) == rowptr){
-                    deleteQueue.add(s);
-                }
-            }
-            while(!deleteQueue.isEmpty()){
-                rows.remove(deleteQueue.pop());
-            }
-            deleteQueue.clear();
-
-            if (rowptr.getCells().isEmpty()) {
+            // The artificial variable can only still be basic with a
+            // non-zero value if it stayed basic throughout, in which case
+            // none of the constraint's own symbols entered the tableau.
+            // Dropping its row leaves the tableau as it was.
+            if (rowptr.isEmpty() || !success) {
+                releaseSymbol(art);
                 return success;
             }
 
@@ -445,15 +2300,17 @@ public class Solver {
             }
             rowptr.solveFor(art, entering);
             substitute(entering, rowptr);
-            this.rows.put(entering, rowptr);
+            addRow(entering, rowptr);
         }
 
         // Remove the artificial variable from the tableau.
-        for (Map.Entry<Symbol, Row> rowEntry : rows.entrySet()) {
-            rowEntry.getValue().remove(art);
+        ColumnIndex.RowSet column = columns.get(art);
+        for (int i = column.size() - 1; i >= 0; i--) {
+            writableRow(column.get(i)).remove(art);
         }
 
-        objective.remove(art);
+        writableObjective().remove(art);
+        releaseSymbol(art);
 
         return success;
     }
@@ -465,14 +2322,19 @@ public class Solver {
      * in the tableau and the objective function with the given row.
      */
     void substitute(Symbol symbol, Row row) {
-        for (Map.Entry<Symbol, Row> rowEntry : rows.entrySet()) {
-            rowEntry.getValue().substitute(symbol, row);
-            if (rowEntry.getKey().getType() != Symbol.Type.EXTERNAL && rowEntry.getValue().getConstant() < 0.0) {
-                infeasibleRows.add(rowEntry.getKey());
+        // Substituting removes the symbol from each row, which drops the
+        // row from the column, so walk the column from the end.
+        ColumnIndex.RowSet column = columns.get(symbol);
+        for (int i = column.size() - 1; i >= 0; i--) {
+            Row candidateRow = writableRow(column.get(i));
+            candidateRow.substitute(symbol, row);
+            markDirty(candidateRow.basic);
+            if (candidateRow.basic.getType() != Symbol.Type.EXTERNAL && candidateRow.getConstant() < 0.0) {
+                queueInfeasible(candidateRow.basic);
             }
         }
 
-        objective.substitute(symbol, row);
+        writableObjective().substitute(symbol, row);
 
         if (artificial != null) {
             artificial.substitute(symbol, row);
@@ -488,8 +2350,11 @@ public class Solver {
      * @throws InternalSolverError The value of the objective function is unbounded.
      */
     void optimize(Row objective) {
+        if (objective == this.objective) {
+            objective = writableObjective();
+        }
         while (true) {
-            Symbol entering = getEnteringSymbol(objective);
+            Symbol entering = pivotRule.selectEntering(objective, columns);
             if (entering.getType() == Symbol.Type.INVALID) {
                 return;
             }
@@ -498,72 +2363,96 @@ public class Solver {
             if(entry == null){
                 throw  new InternalSolverError("The objective is unbounded.");
             }
-            Symbol leaving = null;
-
-            for(Symbol key: rows.keySet()){
-                if(rows.get(key) == entry){
-                    leaving = key;
-                }
-            }
-
-            Symbol entryKey = null;
-            for(Symbol key: rows.keySet()){
-                if(rows.get(key) == entry){
-                    entryKey = key;
-                }
-            }
 
-            rows.remove(entryKey);
-            entry.solveFor(leaving, entering);
-            substitute(entering, entry);
-            rows.put(entering, entry);
+            pivot(entry, entering);
+            pivotRule.pivoted();
         }
     }
 
     void dualOptimize() throws InternalSolverError{
+        if(!tryDualOptimize()){
+            throw new InternalSolverError("internal solver error");
+        }
+    }
+
+    /**
+     * Restore feasibility with the dual simplex method.
+     *
+     * @return false if an infeasible row has no entering symbol, which
+     * means the required constraints cannot be satisfied. The row is left
+     * infeasible.
+     */
+    private boolean tryDualOptimize(){
         while(!infeasibleRows.isEmpty()){
-            Symbol leaving = infeasibleRows.remove(infeasibleRows.size() - 1);
-            Row row = rows.get(leaving);
-            if(row != null && row.getConstant() < 0.0){
+            Symbol leaving = infeasibleRows.pop();
+            infeasibleRowsProcessed++;
+            Row row = getRow(leaving);
+            if(row != null && !Util.nearZero(row.getConstant()) && row.getConstant() < 0.0){
                 Symbol entering = getDualEnteringSymbol(row);
                 if(entering.getType() == Symbol.Type.INVALID){
-                    throw new InternalSolverError("internal solver error");
+                    return false;
                 }
-                rows.remove(leaving);
-                row.solveFor(leaving, entering);
-                substitute(entering, row);
-                rows.put(entering, row);
+                pivot(row, entering);
             }
         }
+        return true;
     }
 
-
     /**
-     * Compute the entering variable for a pivot operation.
-     * <p/>
-     * This method will return first symbol in the objective function which
-     * is non-dummy and has a coefficient less than zero. If no symbol meets
-     * the criteria, it means the objective function is at a minimum, and an
-     * invalid symbol is returned.
+     * Queue every restricted row with a negative constant.
      */
-    private static Symbol getEnteringSymbol(Row objective) {
+    private void queueInfeasibleRows(){
+        for(Row row : rows){
+            if(row != null && row.basic.getType() != Symbol.Type.EXTERNAL && row.getConstant() < 0.0){
+                queueInfeasible(row.basic);
+            }
+        }
+    }
 
-        for (Map.Entry<Symbol, Double> cell : objective.getCells().entrySet()) {
 
-            if (cell.getKey().getType() != Symbol.Type.DUMMY && cell.getValue() < 0.0) {
-                return cell.getKey();
-            }
+    /**
+     * Queue the row for the given basic symbol to be made feasible by the
+     * next dual optimization. A row which is already queued is not queued
+     * again.
+     */
+    private void queueInfeasible(Symbol basic) {
+        if (infeasibleRows.add(basic)) {
+            infeasibleRowsQueued++;
         }
-        return new Symbol();
+    }
+
+    /**
+     * The number of rows queued for the dual optimizer since the solver
+     * was created. A row counts once per time it enters the queue.
+     */
+    public long getInfeasibleRowsQueued() {
+        return infeasibleRowsQueued;
+    }
+
+    /**
+     * The number of queued rows the dual optimizer has taken off the
+     * queue since the solver was created, including rows which had
+     * become feasible again by the time they were checked.
+     */
+    public long getInfeasibleRowsProcessed() {
+        return infeasibleRowsProcessed;
+    }
 
+    /**
+     * The number of symbol ids handed out so far, including those which
+     * have been released for reuse.
+     */
+    int getSymbolCount() {
+        return symbolCount;
     }
 
     private Symbol getDualEnteringSymbol(Row row){
-        Symbol entering = new Symbol();
+        Symbol entering = Symbol.INVALID_SYMBOL;
         double ratio = Double.MAX_VALUE;
-        for(Symbol s: row.getCells().keySet()){
+        for(int i = 0; i < row.cellCount(); i++){
+            Symbol s = row.symbolAt(i);
             if(s.getType() != Symbol.Type.DUMMY){
-                double currentCell = row.getCells().get(s);
+                double currentCell = row.coefficientAt(i);
                 if(currentCell > 0.0){
                     double coefficient = objective.coefficientFor(s);
                     double r = coefficient / currentCell;
@@ -585,13 +2474,14 @@ public class Solver {
      */
     private Symbol anyPivotableSymbol(Row row) {
         Symbol symbol = null;
-        for (Map.Entry<Symbol, Double> entry : row.getCells().entrySet()) {
-            if (entry.getKey().getType() == Symbol.Type.SLACK || entry.getKey().getType() == Symbol.Type.ERROR) {
-                symbol = entry.getKey();
+        for (int i = 0; i < row.cellCount(); i++) {
+            Symbol.Type type = row.symbolAt(i).getType();
+            if (type == Symbol.Type.SLACK || type == Symbol.Type.ERROR) {
+                symbol = row.symbolAt(i);
             }
         }
         if (symbol == null) {
-            symbol = new Symbol();
+            symbol = Symbol.INVALID_SYMBOL;
         }
         return symbol;
     }
@@ -610,14 +2500,16 @@ public class Solver {
     private Row getLeavingRow(Symbol entering) {
         double ratio = Double.MAX_VALUE;
         Row row = null;
+        boolean lowestId = pivotRule.breakTiesByLowestId();
 
-        for(Symbol key: rows.keySet()){
-            if(key.getType() != Symbol.Type.EXTERNAL){
-                Row candidateRow = rows.get(key);
+        ColumnIndex.RowSet column = columns.get(entering);
+        for(int i = 0; i < column.size(); i++){
+            Row candidateRow = column.get(i);
+            if(candidateRow.basic.getType() != Symbol.Type.EXTERNAL){
                 double temp = candidateRow.coefficientFor(entering);
                 if(temp < 0){
                     double temp_ratio = (-candidateRow.getConstant() / temp);
-                    if(temp_ratio < ratio){
+                    if(temp_ratio < ratio || (lowestId && temp_ratio == ratio && candidateRow.basic.getId() < row.basic.getId())){
                         ratio = temp_ratio;
                         row = candidateRow;
                     }
@@ -627,6 +2519,179 @@ public class Solver {
         return row;
     }
 
+    /**
+     * Pivot a tableau row so the entering symbol becomes basic.
+     * <p/>
+     * The row's current basic symbol leaves the basis, the row is solved
+     * for the entering symbol, and the entering symbol is substituted out
+     * of the rest of the tableau. The row stays registered in the column
+     * index throughout, so this costs the size of the row plus the
+     * substitution.
+     */
+    private void pivot(Row row, Symbol entering) {
+        row = writableRow(row);
+        Symbol leaving = row.basic;
+        markDirty(leaving);
+        markDirty(entering);
+        setRow(leaving.getId(), null);
+        row.solveFor(leaving, entering);
+        substitute(entering, row);
+        row.basic = entering;
+        putRow(entering, row);
+    }
+
+    /**
+     * Add a row to the tableau under the given basic symbol and register
+     * its cells with the column index.
+     */
+    private void addRow(Symbol basic, Row row) {
+        markDirty(basic);
+        row.owner = owner;
+        row.basic = basic;
+        row.attach(columns);
+        putRow(basic, row);
+    }
+
+    /**
+     * Remove the row for the given basic symbol from the tableau and the
+     * column index.
+     *
+     * @return The removed row, or null if the symbol is not basic.
+     */
+    private Row removeRow(Symbol basic) {
+        Row row = getRow(basic);
+        if (row != null) {
+            setRow(basic.getId(), null);
+            markDirty(basic);
+            if (row.owner == owner) {
+                row.detach();
+            } else {
+                // Shared with a fork, so unindex it here and hand back a
+                // private copy for the caller to change.
+                for (int i = 0; i < row.cellCount(); i++) {
+                    columns.remove(row.symbolAt(i), row);
+                }
+                Row copy = row.copy();
+                copy.owner = owner;
+                copy.basic = row.basic;
+                row = copy;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * The tableau row for the basic symbol of the given row, copied first
+     * if it is shared with a fork. Every change to a tableau row goes
+     * through here.
+     */
+    private Row writableRow(Row row) {
+        Row current = rows[row.basic.getId()];
+        if (current.owner == owner) {
+            return current;
+        }
+        Row copy = current.copy();
+        copy.owner = owner;
+        copy.basic = current.basic;
+        copy.attachInPlaceOf(current, columns);
+        setRow(current.basic.getId(), copy);
+        return copy;
+    }
+
+    /**
+     * The objective, copied first if it is shared with a fork.
+     */
+    private Row writableObjective() {
+        if (objective.owner != owner) {
+            objective = objective.copy();
+            objective.owner = owner;
+        }
+        return objective;
+    }
+
+    /**
+     * Get the tableau row for the given basic symbol.
+     *
+     * @return The row, or null if the symbol is not basic.
+     */
+    private Row getRow(Symbol basic) {
+        int id = basic.getId();
+        if (id < 0 || id >= rows.length) {
+            return null;
+        }
+        return rows[id];
+    }
+
+    private void putRow(Symbol basic, Row row) {
+        int id = basic.getId();
+        if (id >= rows.length) {
+            rows = Arrays.copyOf(rows, Math.max(rows.length * 2, id + 1));
+        }
+        setRow(id, row);
+    }
+
+    /**
+     * Put a row in a slot of the tableau, recording the row it replaces if
+     * a checkpoint is held and the slot has not been recorded since.
+     */
+    private void setRow(int id, Row row) {
+        Row previous = rows[id];
+        if (journal.isRecording() && (previous == null || previous.owner != owner)) {
+            journal.add(new SlotEntry(rows, id, previous));
+        }
+        rows[id] = row;
+    }
+
+    /**
+     * Link a variable symbol id to its variable, recording the variable it
+     * replaces if a checkpoint is held.
+     */
+    private void setVariable(int id, Variable variable) {
+        if (journal.isRecording()) {
+            journal.add(new SlotEntry(variablesById, id, variablesById[id]));
+        }
+        variablesById[id] = variable;
+    }
+
+    /**
+     * Keep a released variable symbol until the next update, recording it
+     * if a checkpoint is held.
+     */
+    private void releaseLater(Symbol symbol) {
+        releasedVariableSymbols.add(symbol);
+        if (journal.isRecording()) {
+            journal.add(new Journal.Entry() {
+                @Override
+                void undo() {
+                    releasedVariableSymbols.remove(releasedVariableSymbols.size() - 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * A slot of the rows or variables by symbol id, which marks the value
+     * of the symbol dirty when it is put back.
+     */
+    private class SlotEntry extends Journal.Entry {
+
+        private final Object[] array;
+        private final int id;
+        private final Object value;
+
+        SlotEntry(Object[] array, int id, Object value) {
+            this.array = array;
+            this.id = id;
+            this.value = value;
+        }
+
+        @Override
+        void undo() {
+            array[id] = value;
+            dirtyVariables.add(new Symbol(Symbol.Type.EXTERNAL, id));
+        }
+    }
+
     /**
      * Get the symbol for the given variable.
      * <p/>
@@ -637,18 +2702,249 @@ public class Solver {
         if (vars.containsKey(variable)) {
             symbol = vars.get(variable);
         } else {
-            symbol = new Symbol(Symbol.Type.EXTERNAL);
+            symbol = newSymbol(Symbol.Type.EXTERNAL);
             vars.put(variable, symbol);
+            snapshotVariablesAdded = true;
+            if (weakReferences) {
+                if (symbol.getId() >= variableReferences.length) {
+                    variableReferences = Arrays.copyOf(variableReferences, Math.max(variableReferences.length * 2, symbol.getId() + 1));
+                }
+                VariableReference reference = new VariableReference(variable, symbol, collected);
+                variableReferences[symbol.getId()] = reference;
+                references.add(reference);
+            } else {
+                if (symbol.getId() >= variablesById.length) {
+                    variablesById = Arrays.copyOf(variablesById, Math.max(variablesById.length * 2, symbol.getId() + 1));
+                }
+                setVariable(symbol.getId(), variable);
+            }
+            markDirty(symbol);
         }
         return symbol;
     }
 
+    /**
+     * The variable of an external symbol, or null if it has been removed
+     * or collected.
+     */
+    private Variable variableFor(Symbol symbol) {
+        if (weakReferences) {
+            VariableReference reference = variableReferences[symbol.getId()];
+            return reference == null ? null : reference.get();
+        }
+        // A rollback may leave ids which are no longer in use on the
+        // worklist of dirty variables.
+        return symbol.getId() < variablesById.length ? variablesById[symbol.getId()] : null;
+    }
+
+    /**
+     * Remove what belonged to the constraints and variables which have
+     * been collected since the last call, when holding them weakly.
+     */
+    private void reclaimCollected() {
+        if (!weakReferences) {
+            return;
+        }
+
+        boolean removed = false;
+        Reference<?> reference;
+        while ((reference = collected.poll()) != null) {
+            if (!references.remove(reference)) {
+                // Removed explicitly before it was collected.
+                continue;
+            }
+            if (reference instanceof ConstraintReference) {
+                deleteRow(((ConstraintReference) reference).tag);
+                removed = true;
+            } else {
+                collectedVariables.add((VariableReference) reference);
+            }
+        }
+
+        for (int i = collectedVariables.size() - 1; i >= 0; i--) {
+            VariableReference variable = collectedVariables.get(i);
+            if (variable.edit != null) {
+                deleteRow(variable.edit.tag);
+                variable.edit = null;
+                removed = true;
+            }
+            if (hasSignificantCells(variable.symbol)) {
+                // A constraint on the variable is collected, but not yet
+                // enqueued. Try again next time.
+                continue;
+            }
+            collectedVariables.remove(i);
+
+            // Clear the cells left behind by round off.
+            removeRow(variable.symbol);
+            ColumnIndex.RowSet column = columns.get(variable.symbol);
+            for (int j = column.size() - 1; j >= 0; j--) {
+                writableRow(column.get(j)).remove(variable.symbol);
+            }
+            variableReferences[variable.symbol.getId()] = null;
+            if (dirtyVariables.contains(variable.symbol)) {
+                releaseLater(variable.symbol);
+            } else {
+                releaseSymbol(variable.symbol);
+            }
+        }
+
+        if (removed) {
+            optimize(objective);
+            checkBounds();
+        }
+    }
+
+    private boolean hasSignificantCells(Symbol symbol) {
+        Row row = getRow(symbol);
+        if (row != null && !row.isEmpty()) {
+            return true;
+        }
+        ColumnIndex.RowSet column = columns.get(symbol);
+        for (int i = 0; i < column.size(); i++) {
+            if (!Util.nearZero(column.get(i).coefficientFor(symbol))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record that the value of an external symbol may have changed, so the
+     * next call to updateVariables writes it back to its variable.
+     */
+    private void markDirty(Symbol symbol) {
+        if (symbol.getType() == Symbol.Type.EXTERNAL) {
+            dirtyVariables.add(symbol);
+            if (!lazyBounds.isEmpty() && lazyBounds.get(symbol) != null) {
+                boundChecks.add(symbol);
+            }
+        }
+    }
+
+    /**
+     * Create a new symbol with the next free id.
+     */
+    private Symbol newSymbol(Symbol.Type type) {
+        if (freeSymbolCount > 0) {
+            return new Symbol(type, freeSymbolIds[--freeSymbolCount]);
+        }
+        return new Symbol(type, symbolCount++);
+    }
+
+    /**
+     * Hand the ids of the symbols of a constraint back for reuse, if they
+     * no longer appear in the tableau.
+     */
+    private void releaseSymbols(Tag tag) {
+        releaseSymbol(tag.marker);
+        releaseSymbol(tag.other);
+    }
+
+    /**
+     * Hand the id of a symbol back for reuse if the symbol is neither
+     * basic nor in any row. A cell left for it in the objective is
+     * dropped, as nothing can move it any more.
+     */
+    private void releaseSymbol(Symbol symbol) {
+        if (symbol.getType() == Symbol.Type.INVALID || getRow(symbol) != null || columns.get(symbol).size() != 0) {
+            return;
+        }
+        if (objective.coefficientFor(symbol) != 0.0) {
+            writableObjective().remove(symbol);
+        }
+        if (freeSymbolCount == freeSymbolIds.length) {
+            freeSymbolIds = Arrays.copyOf(freeSymbolIds, freeSymbolCount * 2);
+        }
+        journal.slot(freeSymbolIds, freeSymbolCount);
+        freeSymbolIds[freeSymbolCount++] = symbol.getId();
+    }
+
+    /**
+     * Record a constraint under each of the variables it mentions.
+     */
+    private void indexConstraint(Constraint constraint) {
+        for (Term term : constraint.getExpression().getTerms()) {
+            Set<Constraint> constraints = constraintsByVariable.get(term.getVariable());
+            if (constraints == null) {
+                if (weakReferences) {
+                    constraints = Collections.newSetFromMap(new WeakHashMap<Constraint, Boolean>());
+                } else {
+                    constraints = new OwnedSet<Constraint>(owner);
+                }
+                constraintsByVariable.put(term.getVariable(), constraints);
+            } else {
+                constraints = writableMentions(term.getVariable(), constraints);
+            }
+            constraints.add(constraint);
+        }
+    }
+
+    /**
+     * Drop a constraint from the variables it mentions, along with the
+     * constant and strength the solver has given it.
+     */
+    private void unindexConstraint(Constraint constraint) {
+        constraintStates.remove(constraint);
+        for (Term term : constraint.getExpression().getTerms()) {
+            Set<Constraint> constraints = constraintsByVariable.get(term.getVariable());
+            if (constraints != null && constraints.contains(constraint)) {
+                constraints = writableMentions(term.getVariable(), constraints);
+                constraints.remove(constraint);
+                if (constraints.isEmpty()) {
+                    constraintsByVariable.remove(term.getVariable());
+                }
+            }
+        }
+    }
+
+    /**
+     * The constraints indexed under a variable, copied first if they are
+     * shared with a fork. The weak sets of weak reference mode are never
+     * shared.
+     */
+    private Set<Constraint> writableMentions(Variable variable, Set<Constraint> constraints) {
+        if (!weakReferences && ((OwnedSet<Constraint>) constraints).owner != owner) {
+            constraints = new OwnedSet<Constraint>(owner, constraints);
+            constraintsByVariable.put(variable, constraints);
+        }
+        return constraints;
+    }
+
+    /**
+     * The constant of a constraint as this solver has it.
+     */
+    private double constantOf(Constraint constraint) {
+        ConstraintState state = constraintStates.get(constraint);
+        return state != null ? state.constant : constraint.getExpression().getConstant();
+    }
+
+    /**
+     * The strength of a constraint as this solver has it.
+     */
+    private double strengthOf(Constraint constraint) {
+        ConstraintState state = constraintStates.get(constraint);
+        return state != null ? state.strength : constraint.getStrength();
+    }
+
+    /**
+     * Give a constraint a new constant in this solver, leaving the
+     * constraint object alone.
+     */
+    private void setConstant(Constraint constraint, double constant) {
+        constraintStates.put(constraint, new ConstraintState(constant, strengthOf(constraint)));
+    }
+
+    private void setStrengthOf(Constraint constraint, double strength) {
+        constraintStates.put(constraint, new ConstraintState(constantOf(constraint), strength));
+    }
+
     /**
      * Test whether a row is composed of all dummy variables.
      */
     private static boolean allDummies(Row row) {
-        for (Map.Entry<Symbol, Double> cell : row.getCells().entrySet()) {
-            if (cell.getKey().getType() != Symbol.Type.DUMMY) {
+        for (int i = 0; i < row.cellCount(); i++) {
+            if (row.symbolAt(i).getType() != Symbol.Type.DUMMY) {
                 return false;
             }
         }
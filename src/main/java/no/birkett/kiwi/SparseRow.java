@@ -0,0 +1,243 @@
+package no.birkett.kiwi;
+
+import java.util.Arrays;
+
+/**
+ * A row which keeps its cells in parallel arrays sorted by symbol id.
+ * <p/>
+ * Inserting one row into another is a linear merge of the two sorted
+ * arrays, done in place from the back so it needs no allocation once the
+ * arrays have grown to size. Cells which cancel out are dropped during the
+ * merge. Rows in typical layout tableaux are small, so the merge touches
+ * only a few contiguous array entries.
+ */
+class SparseRow extends Row {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] ids;
+    private Symbol[] symbols;
+    private double[] coefficients;
+    private int size;
+
+    SparseRow(double constant) {
+        super(constant);
+        this.ids = new int[INITIAL_CAPACITY];
+        this.symbols = new Symbol[INITIAL_CAPACITY];
+        this.coefficients = new double[INITIAL_CAPACITY];
+    }
+
+    private SparseRow(SparseRow other) {
+        super(other.getConstant());
+        int capacity = Math.max(other.size, INITIAL_CAPACITY);
+        this.ids = Arrays.copyOf(other.ids, capacity);
+        this.symbols = Arrays.copyOf(other.symbols, capacity);
+        this.coefficients = Arrays.copyOf(other.coefficients, capacity);
+        this.size = other.size;
+    }
+
+    @Override
+    Row copy() {
+        return new SparseRow(this);
+    }
+
+    @Override
+    int cellCount() {
+        return size;
+    }
+
+    @Override
+    Symbol symbolAt(int index) {
+        return symbols[index];
+    }
+
+    @Override
+    double coefficientAt(int index) {
+        return coefficients[index];
+    }
+
+    @Override
+    void insert(Symbol symbol, double coefficient) {
+        int index = search(symbol.getId());
+
+        if (index >= 0) {
+            coefficient += coefficients[index];
+            if (Util.nearZero(coefficient)) {
+                removeAt(index);
+            } else {
+                coefficients[index] = coefficient;
+            }
+        } else if (!Util.nearZero(coefficient)) {
+            insertAt(-index - 1, symbol, coefficient);
+        }
+    }
+
+    @Override
+    void insert(Row other, double coefficient) {
+        if (!(other instanceof SparseRow)) {
+            add(other.getConstant() * coefficient);
+            for (int i = 0; i < other.cellCount(); i++) {
+                insert(other.symbolAt(i), other.coefficientAt(i) * coefficient);
+            }
+            return;
+        }
+
+        SparseRow row = (SparseRow) other;
+        add(row.getConstant() * coefficient);
+
+        int end = size + row.size;
+        ensureCapacity(end);
+
+        // Merge from the back so the output never overtakes the cells of
+        // this row which have not been read yet.
+        int i = size - 1;
+        int j = row.size - 1;
+        int k = end - 1;
+        while (j >= 0) {
+            int id = row.ids[j];
+            if (i >= 0 && ids[i] > id) {
+                ids[k] = ids[i];
+                symbols[k] = symbols[i];
+                coefficients[k] = coefficients[i];
+                i--;
+                k--;
+            } else if (i >= 0 && ids[i] == id) {
+                double value = coefficients[i] + row.coefficients[j] * coefficient;
+                if (Util.nearZero(value)) {
+                    cellRemoved(symbols[i]);
+                } else {
+                    ids[k] = id;
+                    symbols[k] = symbols[i];
+                    coefficients[k] = value;
+                    k--;
+                }
+                i--;
+                j--;
+            } else {
+                double value = row.coefficients[j] * coefficient;
+                if (!Util.nearZero(value)) {
+                    ids[k] = id;
+                    symbols[k] = row.symbols[j];
+                    coefficients[k] = value;
+                    k--;
+                    cellAdded(row.symbols[j]);
+                }
+                j--;
+            }
+        }
+
+        // Cells [0, i] were never moved, the merged cells occupy (k, end).
+        // Close the gap left by cancelled cells.
+        int merged = end - 1 - k;
+        if (k > i) {
+            System.arraycopy(ids, k + 1, ids, i + 1, merged);
+            System.arraycopy(symbols, k + 1, symbols, i + 1, merged);
+            System.arraycopy(coefficients, k + 1, coefficients, i + 1, merged);
+        }
+        int newSize = i + 1 + merged;
+        Arrays.fill(symbols, newSize, end, null);
+        size = newSize;
+    }
+
+    @Override
+    void remove(Symbol symbol) {
+        int index = search(symbol.getId());
+        if (index >= 0) {
+            removeAt(index);
+        }
+    }
+
+    @Override
+    void reverseSign() {
+        setConstant(-getConstant());
+
+        for (int i = 0; i < size; i++) {
+            coefficients[i] = -coefficients[i];
+        }
+    }
+
+    @Override
+    void solveFor(Symbol symbol) {
+        int index = search(symbol.getId());
+        double coeff = -1.0 / coefficients[index];
+        removeAt(index);
+        setConstant(getConstant() * coeff);
+
+        for (int i = 0; i < size; i++) {
+            coefficients[i] *= coeff;
+        }
+    }
+
+    @Override
+    double coefficientFor(Symbol symbol) {
+        int index = search(symbol.getId());
+        return index >= 0 ? coefficients[index] : 0.0;
+    }
+
+    @Override
+    void substitute(Symbol symbol, Row row) {
+        int index = search(symbol.getId());
+        if (index >= 0) {
+            double coefficient = coefficients[index];
+            removeAt(index);
+            insert(row, coefficient);
+        }
+    }
+
+    /**
+     * Binary search for the given symbol id.
+     *
+     * @return The index of the cell, or (-(insertion point) - 1) if the id is not in the row.
+     */
+    private int search(int id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = ids[mid];
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            capacity = Math.max(capacity, ids.length * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            coefficients = Arrays.copyOf(coefficients, capacity);
+        }
+    }
+
+    private void insertAt(int index, Symbol symbol, double coefficient) {
+        ensureCapacity(size + 1);
+        int moved = size - index;
+        System.arraycopy(ids, index, ids, index + 1, moved);
+        System.arraycopy(symbols, index, symbols, index + 1, moved);
+        System.arraycopy(coefficients, index, coefficients, index + 1, moved);
+        ids[index] = symbol.getId();
+        symbols[index] = symbol;
+        coefficients[index] = coefficient;
+        size++;
+
+        cellAdded(symbol);
+    }
+
+    private void removeAt(int index) {
+        cellRemoved(symbols[index]);
+
+        int moved = size - index - 1;
+        System.arraycopy(ids, index + 1, ids, index, moved);
+        System.arraycopy(symbols, index + 1, symbols, index, moved);
+        System.arraycopy(coefficients, index + 1, coefficients, index, moved);
+        size--;
+        symbols[size] = null;
+    }
+
+}
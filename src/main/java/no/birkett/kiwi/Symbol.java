@@ -3,7 +3,7 @@ package no.birkett.kiwi;
 /**
  * Created by alex on 30/01/15.
  */
-public class Symbol {
+class Symbol {
 
     enum Type {
         INVALID,
@@ -13,18 +13,42 @@ public class Symbol {
         DUMMY
     }
 
+    /**
+     * Shared invalid symbol, returned by searches which find no symbol so
+     * that the pivot loop does not allocate.
+     */
+    static final Symbol INVALID_SYMBOL = new Symbol();
+
     private Type type;
 
-    public Symbol() {
-        this(Type.INVALID);
+    private int id;
+
+    Symbol() {
+        this(Type.INVALID, -1);
     }
 
-    public Symbol(Type type) {
+    /**
+     * Create a symbol of the given type.
+     * <p/>
+     * The id is handed out by the owning solver. Ids are dense, starting
+     * at zero, so they can be used to index arrays and primitive maps.
+     */
+    Symbol(Type type, int id) {
         this.type = type;
+        this.id = id;
     }
 
     public Type getType() {
         return type;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
 }
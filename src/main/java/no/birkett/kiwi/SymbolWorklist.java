@@ -0,0 +1,77 @@
+package no.birkett.kiwi;
+
+import java.util.Arrays;
+
+/**
+ * A stack of symbols which holds each symbol at most once.
+ * <p/>
+ * Membership is tracked in a bit set indexed by symbol id, so adding a
+ * symbol which is already queued is a constant time no-op.
+ */
+class SymbolWorklist {
+
+    private Symbol[] symbols = new Symbol[16];
+
+    private long[] queued = new long[1];
+
+    private int size;
+
+    /**
+     * Push a symbol onto the worklist unless it is already queued.
+     *
+     * @return true if the symbol was added.
+     */
+    boolean add(Symbol symbol) {
+        int id = symbol.getId();
+        int word = id >>> 6;
+        if (word >= queued.length) {
+            queued = Arrays.copyOf(queued, Math.max(queued.length * 2, word + 1));
+        }
+        long bit = 1L << id;
+        if ((queued[word] & bit) != 0) {
+            return false;
+        }
+        queued[word] |= bit;
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        symbols[size++] = symbol;
+        return true;
+    }
+
+    /**
+     * Whether a symbol with the id of the given one is queued.
+     */
+    boolean contains(Symbol symbol) {
+        int id = symbol.getId();
+        int word = id >>> 6;
+        return word < queued.length && (queued[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * Pop the most recently added symbol.
+     */
+    Symbol pop() {
+        Symbol symbol = symbols[--size];
+        symbols[size] = null;
+        int id = symbol.getId();
+        queued[id >>> 6] &= ~(1L << id);
+        return symbol;
+    }
+
+    SymbolWorklist copy() {
+        SymbolWorklist copy = new SymbolWorklist();
+        copy.symbols = symbols.clone();
+        copy.queued = queued.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -10,4 +10,8 @@ public class UnsatisfiableConstraintException extends KiwiException {
         super(constraint.toString());
         this.constraint = constraint;
     }
+
+    public Constraint getConstraint() {
+        return constraint;
+    }
 }
@@ -0,0 +1,50 @@
+package no.birkett.kiwi;
+
+import java.util.Map;
+
+/**
+ * The values of all the variables of a solver as of one update.
+ * <p/>
+ * A snapshot never changes once published, so a thread may read it while
+ * the solver is being changed by another, and always sees a consistent
+ * layout. Each snapshot has a higher version than the one before it.
+ */
+public final class ValueSnapshot {
+
+    private final long version;
+    private final Map<Variable, Integer> indices;
+    private final double[] values;
+
+    ValueSnapshot(long version, Map<Variable, Integer> indices, double[] values) {
+        this.version = version;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean contains(Variable variable) {
+        return indices.containsKey(variable);
+    }
+
+    /**
+     * @throws IllegalArgumentException The variable was not in the solver when the snapshot was taken.
+     */
+    public double getValue(Variable variable) {
+        Integer index = indices.get(variable);
+        if (index == null) {
+            throw new IllegalArgumentException("variable not in snapshot: " + variable.getName());
+        }
+        return values[index];
+    }
+
+    Map<Variable, Integer> getIndices() {
+        return indices;
+    }
+
+    double[] getValues() {
+        return values;
+    }
+}
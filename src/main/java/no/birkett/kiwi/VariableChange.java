@@ -0,0 +1,34 @@
+package no.birkett.kiwi;
+
+/**
+ * The change in value of a single variable during an update.
+ */
+public class VariableChange {
+
+    private final Variable variable;
+    private final double oldValue;
+    private final double newValue;
+
+    public VariableChange(Variable variable, double oldValue, double newValue) {
+        this.variable = variable;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public Variable getVariable() {
+        return variable;
+    }
+
+    public double getOldValue() {
+        return oldValue;
+    }
+
+    public double getNewValue() {
+        return newValue;
+    }
+
+    @Override
+    public String toString() {
+        return variable.getName() + ": " + oldValue + " -> " + newValue;
+    }
+}
@@ -0,0 +1,17 @@
+package no.birkett.kiwi;
+
+import java.util.List;
+
+/**
+ * Receives the variables changed by each call to {@link Solver#updateVariables()}.
+ */
+public interface VariableChangeListener {
+
+    /**
+     * Called once per update in which at least one variable changed.
+     * The variables already hold their new values when this is called.
+     *
+     * @param changes The changed variables, each listed once.
+     */
+    void variablesChanged(List<VariableChange> changes);
+}
@@ -5,6 +5,7 @@ import org.junit.Test;
 import java.util.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -31,7 +32,7 @@ public class RealWorldTests {
     public static final String CENTERX = "centerX";
     public static final String CENTERY = "centerY";
 
-    private static final String[] CONSTRAINTS = {
+    static final String[] CONSTRAINTS = {
 
             "container.columnWidth == container.width * 0.4",
             "container.thumbHeight == container.columnWidth / 2",
@@ -203,8 +204,33 @@ public class RealWorldTests {
 
     @Test
     public void testGridLayout() throws DuplicateConstraintException, UnsatisfiableConstraintException, NonlinearExpressionException {
+        solveGridLayout(new Solver());
+    }
 
-        final Solver solver = new Solver();
+    @Test
+    public void testGridLayoutWithSparseRows() throws DuplicateConstraintException, UnsatisfiableConstraintException, NonlinearExpressionException {
+        solveGridLayout(new Solver(RowFactory.SPARSE));
+    }
+
+    @Test
+    public void testGridLayoutWithPresolve() throws DuplicateConstraintException, UnsatisfiableConstraintException, NonlinearExpressionException {
+        Solver solver = new Solver();
+        solver.setPresolve(true);
+        solveGridLayout(solver);
+    }
+
+    @Test
+    public void testGridLayoutWithPivotRules() throws DuplicateConstraintException, UnsatisfiableConstraintException, NonlinearExpressionException {
+        PivotRule[] rules = {PivotRule.firstNegative(), PivotRule.dantzig(), PivotRule.bland(), PivotRule.steepestEdge()};
+        for (PivotRule rule : rules) {
+            Solver solver = new Solver();
+            solver.setPivotRule(rule);
+            solveGridLayout(solver);
+            assertTrue(rule + " made no pivots", rule.getPivotCount() > 0);
+        }
+    }
+
+    private void solveGridLayout(final Solver solver) throws DuplicateConstraintException, UnsatisfiableConstraintException, NonlinearExpressionException {
         final HashMap<String, HashMap<String, Variable>> nodeHashMap = new HashMap<>();
 
         ConstraintParser.CassowaryVariableResolver variableResolver = createVariableResolver(solver, nodeHashMap);
@@ -244,6 +270,55 @@ public class RealWorldTests {
         assertEquals(485, nodeHashMap.get("title5").get("top").getValue(), EPSILON);
     }
 
+    @Test
+    public void testGridLayoutWithSuggestValues() throws DuplicateConstraintException, UnsatisfiableConstraintException, NonlinearExpressionException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        final Solver solver = new Solver();
+        final HashMap<String, HashMap<String, Variable>> nodeHashMap = new HashMap<>();
+
+        ConstraintParser.CassowaryVariableResolver variableResolver = createVariableResolver(solver, nodeHashMap);
+
+        for (String constraint : CONSTRAINTS) {
+            solver.addConstraint(ConstraintParser.parseConstraint(constraint, variableResolver));
+        }
+
+        Variable[] edits = {
+                nodeHashMap.get("container").get("width"),
+                nodeHashMap.get("title0").get("intrinsicHeight"),
+                nodeHashMap.get("title1").get("intrinsicHeight"),
+                nodeHashMap.get("title2").get("intrinsicHeight"),
+                nodeHashMap.get("title3").get("intrinsicHeight"),
+                nodeHashMap.get("title4").get("intrinsicHeight"),
+                nodeHashMap.get("title5").get("intrinsicHeight"),
+                nodeHashMap.get("more").get("intrinsicHeight")
+        };
+
+        for (Variable edit : edits) {
+            solver.addEditVariable(edit, Strength.STRONG);
+        }
+
+        solver.suggestValues(edits, new double[]{400, 50, 60, 70, 80, 90, 100, 110});
+        solver.suggestValues(edits, new double[]{300, 100, 110, 120, 130, 140, 150, 160});
+        solver.updateVariables();
+
+        assertEquals(20, nodeHashMap.get("thumb0").get("top").getValue(), EPSILON);
+        assertEquals(20, nodeHashMap.get("thumb1").get("top").getValue(), EPSILON);
+
+        assertEquals(85, nodeHashMap.get("title0").get("top").getValue(), EPSILON);
+        assertEquals(85, nodeHashMap.get("title1").get("top").getValue(), EPSILON);
+
+        assertEquals(210, nodeHashMap.get("thumb2").get("top").getValue(), EPSILON);
+        assertEquals(210, nodeHashMap.get("thumb3").get("top").getValue(), EPSILON);
+
+        assertEquals(275, nodeHashMap.get("title2").get("top").getValue(), EPSILON);
+        assertEquals(275, nodeHashMap.get("title3").get("top").getValue(), EPSILON);
+
+        assertEquals(420, nodeHashMap.get("thumb4").get("top").getValue(), EPSILON);
+        assertEquals(420, nodeHashMap.get("thumb5").get("top").getValue(), EPSILON);
+
+        assertEquals(485, nodeHashMap.get("title4").get("top").getValue(), EPSILON);
+        assertEquals(485, nodeHashMap.get("title5").get("top").getValue(), EPSILON);
+    }
+
   /*  @Test
     public void testGridLayoutUsingEditVariables() throws CassowaryError {
 
@@ -1,8 +1,24 @@
 package no.birkett.kiwi;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class Tests {
@@ -204,4 +220,1244 @@ public class Tests {
         solver.updateVariables();
     }
 
+    @Test
+    public void addConstraintsBatch() throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Variable z = new Variable("z");
+        Solver solver = new Solver();
+
+        List<Constraint> constraints = new ArrayList<Constraint>();
+        constraints.add(Symbolics.equals(y, Symbolics.add(x, 3.0)));
+        constraints.add(Symbolics.equals(z, Symbolics.add(x, y)));
+        constraints.add(Symbolics.greaterThanOrEqualTo(x, 0.0));
+        constraints.add(Symbolics.equals(x, 10.0).setStrength(Strength.WEAK));
+        solver.addConstraints(constraints);
+        solver.updateVariables();
+
+        assertEquals(10, x.getValue(), EPSILON);
+        assertEquals(13, y.getValue(), EPSILON);
+        assertEquals(23, z.getValue(), EPSILON);
+    }
+
+    @Test
+    public void addConstraintsInconsistent() throws DuplicateConstraintException {
+        Variable x = new Variable("x");
+        Solver solver = new Solver();
+
+        Constraint first = Symbolics.greaterThanOrEqualTo(x, 10.0);
+        Constraint second = Symbolics.lessThanOrEqualTo(x, 5.0);
+        Constraint third = Symbolics.equals(x, 20.0);
+        List<Constraint> constraints = new ArrayList<Constraint>();
+        constraints.add(first);
+        constraints.add(second);
+        constraints.add(third);
+
+        try {
+            solver.addConstraints(constraints);
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(second, e.getConstraint());
+        }
+
+        assertEquals(true, solver.hasConstraint(first));
+        assertEquals(false, solver.hasConstraint(second));
+        assertEquals(false, solver.hasConstraint(third));
+    }
+
+    @Test
+    public void updateVariablesReturnsChanged() throws DuplicateConstraintException, UnsatisfiableConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Variable z = new Variable("z");
+        Solver solver = new Solver();
+
+        solver.addConstraint(Symbolics.equals(y, Symbolics.add(x, 10.0)));
+        solver.addConstraint(Symbolics.equals(z, 5.0));
+        solver.addEditVariable(x, Strength.STRONG);
+
+        Set<Variable> changed = solver.updateVariables();
+        assertEquals(2, changed.size());
+        assertTrue(changed.contains(y));
+        assertTrue(changed.contains(z));
+
+        assertTrue(solver.updateVariables().isEmpty());
+
+        solver.suggestValue(x, 20);
+        changed = solver.updateVariables();
+        assertEquals(2, changed.size());
+        assertTrue(changed.contains(x));
+        assertTrue(changed.contains(y));
+        assertEquals(20, x.getValue(), EPSILON);
+        assertEquals(30, y.getValue(), EPSILON);
+        assertEquals(5, z.getValue(), EPSILON);
+
+        solver.suggestValue(x, 20);
+        assertTrue(solver.updateVariables().isEmpty());
+    }
+
+    @Test
+    public void variableChangeListener() throws DuplicateConstraintException, UnsatisfiableConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Variable z = new Variable("z");
+        Solver solver = new Solver();
+
+        final List<List<VariableChange>> notifications = new ArrayList<List<VariableChange>>();
+        solver.addVariableChangeListener(new VariableChangeListener() {
+            @Override
+            public void variablesChanged(List<VariableChange> changes) {
+                notifications.add(new ArrayList<VariableChange>(changes));
+            }
+        });
+
+        solver.addConstraint(Symbolics.equals(y, Symbolics.multiply(x, 2.0)));
+        solver.addConstraint(Symbolics.equals(z, 7.0));
+        solver.addEditVariable(x, Strength.STRONG);
+        solver.suggestValue(x, 10);
+        solver.updateVariables();
+
+        assertEquals(1, notifications.size());
+        assertEquals(3, notifications.get(0).size());
+
+        solver.updateVariables();
+        assertEquals(1, notifications.size());
+
+        solver.suggestValue(x, 15);
+        solver.updateVariables();
+
+        assertEquals(2, notifications.size());
+        List<VariableChange> changes = notifications.get(1);
+        assertEquals(2, changes.size());
+        for (VariableChange change : changes) {
+            if (change.getVariable() == x) {
+                assertEquals(10, change.getOldValue(), EPSILON);
+                assertEquals(15, change.getNewValue(), EPSILON);
+            } else {
+                assertSame(y, change.getVariable());
+                assertEquals(20, change.getOldValue(), EPSILON);
+                assertEquals(30, change.getNewValue(), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void infeasibleRowCounters() throws DuplicateConstraintException, UnsatisfiableConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Solver solver = new Solver();
+
+        solver.addConstraint(Symbolics.lessThanOrEqualTo(x, 100.0));
+        solver.addConstraint(Symbolics.greaterThanOrEqualTo(y, x));
+        solver.addConstraint(Symbolics.equals(y, 0.0).setStrength(Strength.WEAK));
+        solver.addEditVariable(x, Strength.STRONG);
+
+        solver.suggestValue(x, 50);
+        solver.suggestValue(x, -20);
+        solver.suggestValue(x, 150);
+        solver.updateVariables();
+
+        assertEquals(100, x.getValue(), EPSILON);
+        assertTrue(solver.getInfeasibleRowsQueued() > 0);
+        assertEquals(solver.getInfeasibleRowsQueued(), solver.getInfeasibleRowsProcessed());
+    }
+
+    @Test
+    public void suggestValueDoesNotAllocate() throws DuplicateConstraintException, UnsatisfiableConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Variable left = new Variable("left");
+        Variable width = new Variable("width");
+        Variable right = new Variable("right");
+        Variable mid = new Variable("mid");
+        Solver solver = new Solver();
+
+        solver.addConstraint(Symbolics.equals(right, Symbolics.add(left, width)));
+        solver.addConstraint(Symbolics.equals(mid, Symbolics.add(left, Symbolics.divide(width, 2.0))));
+        solver.addConstraint(Symbolics.greaterThanOrEqualTo(left, 0.0));
+        solver.addConstraint(Symbolics.lessThanOrEqualTo(right, 500.0));
+        solver.addConstraint(Symbolics.greaterThanOrEqualTo(width, 10.0));
+        solver.addConstraint(Symbolics.equals(width, 100.0).setStrength(Strength.WEAK));
+        solver.addEditVariable(left, Strength.STRONG);
+        solver.addEditVariable(width, Strength.MEDIUM);
+
+        // Let the rows and worklists reach their steady state capacity.
+        for (int i = 0; i < 10000; i++) {
+            suggestFrame(solver, left, width, i);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            suggestFrame(solver, left, width, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(0, allocated);
+    }
+
+    private static void suggestFrame(Solver solver, Variable left, Variable width, int frame) throws UnknownEditVariableException {
+        solver.suggestValue(left, (frame % 7) * 100 - 50);
+        solver.suggestValue(width, (frame % 5) * 150 - 100);
+    }
+
+    @Test
+    public void presolveChain() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException {
+        Solver solver = new Solver();
+        solver.setPresolve(true);
+
+        Variable[] chain = new Variable[10];
+        Constraint[] links = new Constraint[chain.length];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = new Variable("v" + i);
+        }
+        links[0] = Symbolics.equals(chain[0], 5.0);
+        solver.addConstraint(links[0]);
+        for (int i = 1; i < chain.length; i++) {
+            links[i] = Symbolics.equals(chain[i], Symbolics.add(chain[i - 1], 10.0));
+            solver.addConstraint(links[i]);
+        }
+        Variable end = new Variable("end");
+        solver.addConstraint(Symbolics.greaterThanOrEqualTo(end, chain[chain.length - 1]));
+        solver.updateVariables();
+
+        for (int i = 0; i < chain.length; i++) {
+            assertEquals(5 + 10 * i, chain[i].getValue(), EPSILON);
+            assertTrue(solver.hasConstraint(links[i]));
+        }
+        assertTrue(end.getValue() >= 95 - EPSILON);
+
+        solver.removeConstraint(links[0]);
+        solver.addConstraint(Symbolics.equals(chain[0], 50.0));
+        solver.updateVariables();
+
+        for (int i = 0; i < chain.length; i++) {
+            assertEquals(50 + 10 * i, chain[i].getValue(), EPSILON);
+        }
+        assertTrue(end.getValue() >= 140 - EPSILON);
+    }
+
+    @Test
+    public void presolveKeepsEditVariables() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Solver solver = new Solver();
+        solver.setPresolve(true);
+
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Variable z = new Variable("z");
+        Constraint alias = Symbolics.equals(y, Symbolics.add(x, 3.0));
+        solver.addConstraint(alias);
+        solver.addConstraint(Symbolics.equals(z, Symbolics.multiply(y, 2.0)));
+        solver.addEditVariable(y, Strength.STRONG);
+        solver.suggestValue(y, 10);
+        solver.updateVariables();
+
+        assertEquals(7, x.getValue(), EPSILON);
+        assertEquals(10, y.getValue(), EPSILON);
+        assertEquals(20, z.getValue(), EPSILON);
+
+        solver.removeConstraint(alias);
+        solver.addConstraint(Symbolics.equals(x, 1.0));
+        solver.updateVariables();
+
+        assertEquals(1, x.getValue(), EPSILON);
+        assertEquals(10, y.getValue(), EPSILON);
+        assertEquals(20, z.getValue(), EPSILON);
+    }
+
+    @Test
+    public void lazyBounds() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Variable left = new Variable("left");
+        Variable width = new Variable("width");
+        Variable right = new Variable("right");
+        Solver solver = new Solver();
+        solver.setLazyBounds(true);
+
+        Constraint minWidth = Symbolics.greaterThanOrEqualTo(width, 10.0);
+        Constraint maxWidth = Symbolics.lessThanOrEqualTo(width, 500.0);
+        solver.addConstraint(minWidth);
+        solver.addConstraint(maxWidth);
+        solver.addConstraint(Symbolics.equals(right, Symbolics.add(left, width)));
+        solver.addConstraint(Symbolics.equals(left, 0.0));
+        solver.addEditVariable(width, Strength.STRONG);
+
+        solver.suggestValue(width, 1000);
+        solver.updateVariables();
+        assertEquals(500, right.getValue(), EPSILON);
+
+        solver.suggestValue(width, -5);
+        solver.updateVariables();
+        assertEquals(10, right.getValue(), EPSILON);
+
+        solver.suggestValue(width, 200);
+        solver.updateVariables();
+        assertEquals(200, right.getValue(), EPSILON);
+
+        solver.removeConstraint(maxWidth);
+        assertFalse(solver.hasConstraint(maxWidth));
+        solver.suggestValue(width, 1000);
+        solver.updateVariables();
+        assertEquals(1000, right.getValue(), EPSILON);
+    }
+
+    @Test
+    public void lazyBoundsRejectConflicts() throws DuplicateConstraintException, UnsatisfiableConstraintException {
+        Variable x = new Variable("x");
+        Solver solver = new Solver();
+        solver.setLazyBounds(true);
+
+        Constraint lower = Symbolics.greaterThanOrEqualTo(x, 10.0);
+        Constraint conflict = Symbolics.equals(x, 5.0);
+        solver.addConstraint(lower);
+
+        try {
+            solver.addConstraint(conflict);
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(conflict, e.getConstraint());
+        }
+
+        assertTrue(solver.hasConstraint(lower));
+        assertFalse(solver.hasConstraint(conflict));
+
+        solver.addConstraint(Symbolics.equals(x, 0.0).setStrength(Strength.WEAK));
+        solver.updateVariables();
+        assertEquals(10, x.getValue(), EPSILON);
+    }
+
+    @Test
+    public void lazyBoundsPartialBatch() throws KiwiException {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Solver solver = new Solver();
+        solver.setLazyBounds(true);
+        solver.addConstraint(Symbolics.equals(x, 500.0).setStrength(Strength.STRONG));
+        solver.addConstraint(Symbolics.equals(y, 1.0));
+
+        Constraint upper = Symbolics.lessThanOrEqualTo(x, 100.0);
+        Constraint conflict = Symbolics.equals(y, 2.0);
+        try {
+            solver.addConstraints(Arrays.asList(upper, conflict));
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(conflict, e.getConstraint());
+        }
+        assertTrue(solver.hasConstraint(upper));
+        solver.updateVariables();
+        assertEquals(100, x.getValue(), EPSILON);
+
+        // The same when enabling a batch.
+        solver.disableConstraint(upper);
+        solver.updateVariables();
+        assertEquals(500, x.getValue(), EPSILON);
+        solver.addConstraint(conflict.setStrength(Strength.WEAK));
+        solver.disableConstraint(conflict);
+        solver.setStrength(conflict, Strength.REQUIRED);
+        try {
+            solver.enableConstraints(Arrays.asList(upper, conflict));
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(conflict, e.getConstraint());
+        }
+        assertFalse(solver.isConstraintDisabled(upper));
+        solver.updateVariables();
+        assertEquals(100, x.getValue(), EPSILON);
+    }
+
+    @Test
+    public void lazyBoundsBatchConflict() throws KiwiException {
+        Variable x = new Variable("x");
+        Solver solver = new Solver();
+        solver.setLazyBounds(true);
+        solver.addConstraint(Symbolics.lessThanOrEqualTo(x, 100.0));
+
+        // Only the bound, which is not in the tableau yet, rejects the
+        // constraint in the middle of the batch.
+        List<Constraint> batch = new ArrayList<Constraint>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(Symbolics.equals(new Variable("y" + i), i));
+        }
+        Constraint conflict = Symbolics.equals(x, 200.0);
+        batch.set(11, conflict);
+        try {
+            solver.addConstraints(batch);
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(conflict, e.getConstraint());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(i < 11, solver.hasConstraint(batch.get(i)));
+        }
+
+        // The same when enabling a batch.
+        List<Constraint> rest = batch.subList(11, batch.size());
+        solver.addConstraint(conflict.setStrength(Strength.WEAK));
+        for (Constraint constraint : rest.subList(1, rest.size())) {
+            solver.addConstraint(constraint);
+        }
+        solver.disableConstraints(batch);
+        solver.setStrength(conflict, Strength.REQUIRED);
+        try {
+            solver.enableConstraints(batch);
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(conflict, e.getConstraint());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(i >= 11, solver.isConstraintDisabled(batch.get(i)));
+        }
+        solver.updateVariables();
+        assertTrue(x.getValue() <= 100 + EPSILON);
+    }
+
+    @Test
+    public void updateConstant() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Solver solver = new Solver();
+
+        Constraint lower = Symbolics.greaterThanOrEqualTo(x, 10.0);
+        Constraint upper = Symbolics.lessThanOrEqualTo(y, 200.0);
+        Constraint offset = Symbolics.equals(y, Symbolics.add(x, 5.0));
+        Constraint preferred = Symbolics.equals(x, 50.0).setStrength(Strength.WEAK);
+        solver.addConstraint(lower);
+        solver.addConstraint(upper);
+        solver.addConstraint(offset);
+        solver.addConstraint(preferred);
+
+        solver.updateConstant(lower, -60.0);
+        solver.updateVariables();
+        assertEquals(60, x.getValue(), EPSILON);
+        assertEquals(65, y.getValue(), EPSILON);
+
+        solver.updateConstant(offset, 20.0);
+        solver.updateVariables();
+        assertEquals(60, x.getValue(), EPSILON);
+        assertEquals(80, y.getValue(), EPSILON);
+
+        solver.updateConstant(preferred, -100.0);
+        solver.updateVariables();
+        assertEquals(100, x.getValue(), EPSILON);
+        assertEquals(120, y.getValue(), EPSILON);
+
+        try {
+            solver.updateConstant(upper, -70.0);
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(upper, e.getConstraint());
+        }
+        assertEquals(-200, upper.getExpression().getConstant(), EPSILON);
+
+        solver.updateVariables();
+        assertEquals(100, x.getValue(), EPSILON);
+        assertEquals(120, y.getValue(), EPSILON);
+    }
+
+    @Test
+    public void setStrength() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException {
+        Variable x = new Variable("x");
+        Solver solver = new Solver();
+
+        Constraint low = Symbolics.lessThanOrEqualTo(x, 10.0).setStrength(Strength.STRONG);
+        Constraint high = Symbolics.equals(x, 50.0).setStrength(Strength.WEAK);
+        solver.addConstraint(low);
+        solver.addConstraint(high);
+        solver.updateVariables();
+        assertEquals(10, x.getValue(), EPSILON);
+
+        solver.setStrength(high, Strength.create(2.0, 0.0, 0.0));
+        solver.updateVariables();
+        assertEquals(50, x.getValue(), EPSILON);
+        assertEquals(Strength.WEAK, high.getStrength(), EPSILON);
+
+        solver.setStrength(low, Strength.REQUIRED);
+        solver.updateVariables();
+        assertEquals(10, x.getValue(), EPSILON);
+
+        Constraint fixed = Symbolics.equals(x, 5.0).setStrength(Strength.MEDIUM);
+        solver.addConstraint(fixed);
+        solver.setStrength(low, Strength.WEAK);
+        solver.updateVariables();
+        assertEquals(50, x.getValue(), EPSILON);
+
+        solver.setStrength(high, Strength.REQUIRED);
+        try {
+            solver.setStrength(low, Strength.REQUIRED);
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(low, e.getConstraint());
+        }
+        assertTrue(solver.hasConstraint(low));
+        solver.updateVariables();
+        assertEquals(50, x.getValue(), EPSILON);
+        solver.removeConstraint(high);
+        solver.updateVariables();
+        assertEquals(5, x.getValue(), EPSILON);
+        assertEquals(Strength.STRONG, low.getStrength(), EPSILON);
+    }
+
+    @Test
+    public void setEditStrength() throws DuplicateConstraintException, UnsatisfiableConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Variable x = new Variable("x");
+        Solver solver = new Solver();
+        solver.addConstraint(Symbolics.equals(x, 0.0).setStrength(Strength.MEDIUM));
+        solver.addEditVariable(x, Strength.WEAK);
+        solver.suggestValue(x, 100.0);
+        solver.updateVariables();
+        assertEquals(0, x.getValue(), EPSILON);
+
+        solver.setEditStrength(x, Strength.STRONG);
+        solver.updateVariables();
+        assertEquals(100, x.getValue(), EPSILON);
+
+        solver.suggestValue(x, 80.0);
+        solver.setEditStrength(x, Strength.WEAK);
+        solver.updateVariables();
+        assertEquals(0, x.getValue(), EPSILON);
+
+        solver.setEditStrength(x, Strength.STRONG);
+        solver.updateVariables();
+        assertEquals(80, x.getValue(), EPSILON);
+    }
+
+    @Test
+    public void constraintGroups() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException {
+        Variable width = new Variable("width");
+        Variable height = new Variable("height");
+        Solver solver = new Solver();
+
+        List<Constraint> portrait = new ArrayList<Constraint>();
+        portrait.add(Symbolics.equals(width, 300.0));
+        portrait.add(Symbolics.equals(height, 500.0));
+        List<Constraint> landscape = new ArrayList<Constraint>();
+        landscape.add(Symbolics.equals(width, 500.0));
+        landscape.add(Symbolics.equals(height, 300.0));
+        solver.defineGroup("portrait", portrait);
+        solver.defineGroup("landscape", landscape);
+
+        solver.addConstraints(landscape);
+        solver.disableGroup("landscape");
+        solver.addConstraints(portrait);
+        solver.updateVariables();
+        assertEquals(300, width.getValue(), EPSILON);
+        assertEquals(500, height.getValue(), EPSILON);
+        assertFalse(solver.hasConstraint(landscape.get(0)));
+        assertTrue(solver.isConstraintDisabled(landscape.get(0)));
+
+        solver.disableGroup("portrait");
+        solver.enableGroup("landscape");
+        solver.updateVariables();
+        assertEquals(500, width.getValue(), EPSILON);
+        assertEquals(300, height.getValue(), EPSILON);
+
+        try {
+            solver.enableGroup("portrait");
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            assertSame(portrait.get(0), e.getConstraint());
+        }
+        assertTrue(solver.isConstraintDisabled(portrait.get(0)));
+        assertTrue(solver.isConstraintDisabled(portrait.get(1)));
+
+        solver.disableConstraint(landscape.get(1));
+        solver.enableConstraint(portrait.get(1));
+        solver.updateVariables();
+        assertEquals(500, width.getValue(), EPSILON);
+        assertEquals(500, height.getValue(), EPSILON);
+
+        solver.removeConstraint(landscape.get(1));
+        assertFalse(solver.isConstraintDisabled(landscape.get(1)));
+        try {
+            solver.enableConstraint(landscape.get(1));
+            fail();
+        } catch (UnknownConstraintException e) {
+        }
+    }
+
+    @Test
+    public void removeConstraintsBatch() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Variable z = new Variable("z");
+        Solver solver = new Solver();
+        solver.setPresolve(true);
+
+        Constraint yFromX = Symbolics.equals(y, Symbolics.add(x, 10.0));
+        Constraint zFromY = Symbolics.equals(z, Symbolics.add(y, 10.0));
+        Constraint xFixed = Symbolics.equals(x, 5.0);
+        Constraint zBelow = Symbolics.lessThanOrEqualTo(z, 100.0);
+        List<Constraint> subtree = new ArrayList<Constraint>();
+        subtree.add(zFromY);
+        subtree.add(xFixed);
+        subtree.add(zBelow);
+
+        solver.addConstraint(yFromX);
+        solver.addConstraints(subtree);
+        solver.addConstraint(Symbolics.equals(x, 50.0).setStrength(Strength.WEAK));
+        solver.addConstraint(Symbolics.equals(z, 0.0).setStrength(Strength.WEAK));
+        solver.updateVariables();
+        assertEquals(25, z.getValue(), EPSILON);
+
+        try {
+            solver.removeConstraints(Arrays.asList(zFromY, Symbolics.equals(x, 1.0)));
+            fail();
+        } catch (UnknownConstraintException e) {
+        }
+        assertTrue(solver.hasConstraint(zFromY));
+
+        solver.removeConstraints(subtree);
+        for (Constraint constraint : subtree) {
+            assertFalse(solver.hasConstraint(constraint));
+        }
+        solver.updateVariables();
+        assertEquals(50, x.getValue(), EPSILON);
+        assertEquals(60, y.getValue(), EPSILON);
+        assertEquals(0, z.getValue(), EPSILON);
+    }
+
+    @Test
+    public void removeVariable() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Variable parent = new Variable("parent");
+        Solver solver = new Solver();
+        solver.addConstraint(Symbolics.equals(parent, 100.0));
+
+        for (int i = 0; i < 100; i++) {
+            Variable child = new Variable("child" + i);
+            Constraint inside = Symbolics.lessThanOrEqualTo(child, parent);
+            Constraint offset = Symbolics.equals(child, Symbolics.add(parent, -10.0)).setStrength(Strength.STRONG);
+            solver.addConstraint(inside);
+            solver.addConstraint(offset);
+            solver.addEditVariable(child, Strength.MEDIUM);
+            solver.suggestValue(child, 200.0);
+            solver.updateVariables();
+            assertEquals(90, child.getValue(), EPSILON);
+            assertEquals(2, solver.getConstraints(child).size());
+            assertTrue(solver.getConstraints(parent).contains(inside));
+
+            solver.removeVariable(child);
+            assertFalse(solver.hasConstraint(inside));
+            assertFalse(solver.hasConstraint(offset));
+            assertFalse(solver.hasEditVariable(child));
+            assertTrue(solver.getConstraints(child).isEmpty());
+            assertEquals(1, solver.getConstraints(parent).size());
+        }
+
+        Variable reused = new Variable("reused");
+        solver.addConstraint(Symbolics.equals(reused, Symbolics.add(parent, 1.0)));
+        solver.removeVariable(reused);
+        solver.addConstraint(Symbolics.equals(reused, Symbolics.add(parent, 2.0)));
+        solver.updateVariables();
+        assertEquals(100, parent.getValue(), EPSILON);
+        assertEquals(102, reused.getValue(), EPSILON);
+    }
+
+    @Test
+    public void symbolIdsAreReused() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Solver solver = new Solver();
+        solver.addConstraint(Symbolics.equals(y, Symbolics.add(x, 10.0)));
+        solver.addEditVariable(x, Strength.STRONG);
+
+        int symbols = 0;
+        for (int i = 0; i < 50; i++) {
+            Variable margin = new Variable("margin" + i);
+            Constraint limit = Symbolics.lessThanOrEqualTo(y, 100.0 + i);
+            Constraint inside = Symbolics.lessThanOrEqualTo(Symbolics.add(y, margin), 200.0).setStrength(Strength.MEDIUM);
+            solver.addConstraint(limit);
+            solver.addConstraint(inside);
+            solver.suggestValue(x, 500);
+            solver.updateVariables();
+            assertEquals(90 + i, x.getValue(), EPSILON);
+
+            solver.removeConstraint(limit);
+            solver.removeVariable(margin);
+            solver.updateVariables();
+            assertEquals(500, x.getValue(), EPSILON);
+
+            // The released slack, error and variable symbols are handed
+            // out again, so the solver stops growing after the first round.
+            if (i == 0) {
+                symbols = solver.getSymbolCount();
+            }
+            assertEquals(symbols, solver.getSymbolCount());
+        }
+    }
+
+    @Test
+    public void weakReferences() throws DuplicateConstraintException, UnsatisfiableConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException, InterruptedException {
+        Variable parent = new Variable("parent");
+        Solver solver = new Solver();
+        solver.setWeakReferences(true);
+        Constraint preference = Symbolics.equals(parent, 100.0).setStrength(Strength.WEAK);
+        solver.addConstraint(preference);
+
+        addTemporaryChild(solver, parent);
+        solver.updateVariables();
+        assertEquals(50, parent.getValue(), EPSILON);
+
+        // Nothing holds the child or its constraints any more, so once
+        // they are collected the parent goes back to its own preference.
+        for (int i = 0; i < 50 && Math.abs(parent.getValue() - 100) > EPSILON; i++) {
+            System.gc();
+            Thread.sleep(10);
+            solver.updateVariables();
+        }
+        Assume.assumeTrue(Math.abs(parent.getValue() - 100) <= EPSILON);
+        assertTrue(solver.hasConstraint(preference));
+        assertEquals(1, solver.getConstraints(parent).size());
+
+        try {
+            solver.setPresolve(true);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        try {
+            solver.setWeakReferences(false);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    private static void addTemporaryChild(Solver solver, Variable parent) throws DuplicateConstraintException, UnsatisfiableConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        Variable child = new Variable("child");
+        solver.addConstraint(Symbolics.equals(child, parent));
+        solver.addConstraint(Symbolics.equals(child, 50.0).setStrength(Strength.MEDIUM));
+        solver.addEditVariable(child, Strength.STRONG);
+        solver.suggestValue(child, 50.0);
+    }
+
+    @Test
+    public void partitionedSolver() throws DuplicateConstraintException, UnsatisfiableConstraintException, UnknownConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            PartitionedSolver solver = new PartitionedSolver(pool);
+            List<Constraint> constraints = new ArrayList<Constraint>();
+            Variable[] lefts = new Variable[4];
+            Variable[] rights = new Variable[4];
+            for (int i = 0; i < lefts.length; i++) {
+                lefts[i] = new Variable("left" + i);
+                rights[i] = new Variable("right" + i);
+                constraints.add(Symbolics.equals(rights[i], Symbolics.add(lefts[i], 10.0 * (i + 1))));
+                constraints.add(Symbolics.greaterThanOrEqualTo(lefts[i], 0.0));
+            }
+            solver.addConstraints(constraints);
+            assertEquals(4, solver.getComponentCount());
+
+            for (Variable left : lefts) {
+                solver.addEditVariable(left, Strength.STRONG);
+            }
+            solver.suggestValues(lefts, new double[]{1, 2, 3, -4});
+            solver.updateVariables();
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i + 1, lefts[i].getValue(), EPSILON);
+                assertEquals(i + 1 + 10.0 * (i + 1), rights[i].getValue(), EPSILON);
+            }
+            assertEquals(0, lefts[3].getValue(), EPSILON);
+            assertEquals(40, rights[3].getValue(), EPSILON);
+
+            // Bridging two islands merges them, keeping their edits.
+            Constraint bridge = Symbolics.lessThanOrEqualTo(rights[0], lefts[1]).setStrength(Strength.REQUIRED);
+            solver.addConstraint(bridge);
+            assertEquals(3, solver.getComponentCount());
+            assertTrue(solver.hasEditVariable(lefts[0]));
+            assertTrue(solver.hasEditVariable(lefts[1]));
+            solver.removeEditVariable(lefts[1]);
+            solver.suggestValue(lefts[0], 5);
+            solver.updateVariables();
+            assertEquals(5, lefts[0].getValue(), EPSILON);
+            assertEquals(15, rights[0].getValue(), EPSILON);
+            assertTrue(lefts[1].getValue() >= 15 - EPSILON);
+
+            // Components are not split again.
+            solver.removeConstraint(bridge);
+            assertFalse(solver.hasConstraint(bridge));
+            assertEquals(3, solver.getComponentCount());
+            solver.addEditVariable(lefts[1], Strength.STRONG);
+            solver.suggestValue(lefts[1], 2);
+            solver.updateVariables();
+            assertEquals(2, lefts[1].getValue(), EPSILON);
+            assertEquals(22, rights[1].getValue(), EPSILON);
+
+            try {
+                solver.addConstraint(Symbolics.lessThanOrEqualTo(rights[2], -1.0));
+                fail();
+            } catch (UnsatisfiableConstraintException e) {
+            }
+            try {
+                solver.addConstraint(constraints.get(0));
+                fail();
+            } catch (DuplicateConstraintException e) {
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void partitionedSolverRejectedBridge() throws DuplicateConstraintException, UnsatisfiableConstraintException, DuplicateEditVariableException, RequiredFailureException, UnknownEditVariableException {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            PartitionedSolver solver = new PartitionedSolver(pool);
+            Variable[] lefts = new Variable[3];
+            Variable[] rights = new Variable[3];
+            for (int i = 0; i < lefts.length; i++) {
+                lefts[i] = new Variable("left" + i);
+                rights[i] = new Variable("right" + i);
+                solver.addConstraint(Symbolics.equals(rights[i], Symbolics.add(lefts[i], 10.0)));
+                solver.addConstraint(Symbolics.greaterThanOrEqualTo(lefts[i], 0.0));
+            }
+            assertEquals(3, solver.getComponentCount());
+
+            // A bridge which cannot be added leaves the components apart.
+            Constraint unsatisfiable = Symbolics.lessThanOrEqualTo(Symbolics.add(rights[0], rights[1]), 5.0);
+            try {
+                solver.addConstraint(unsatisfiable);
+                fail();
+            } catch (UnsatisfiableConstraintException e) {
+            }
+            assertFalse(solver.hasConstraint(unsatisfiable));
+            assertEquals(3, solver.getComponentCount());
+
+            // In a batch, only the constraints added merge components.
+            Constraint inside = Symbolics.greaterThanOrEqualTo(lefts[2], 1.0);
+            Constraint bridge = Symbolics.lessThanOrEqualTo(rights[0], lefts[1]);
+            unsatisfiable = Symbolics.lessThanOrEqualTo(Symbolics.add(rights[1], rights[2]), 0.0);
+            try {
+                solver.addConstraints(Arrays.asList(inside, bridge, unsatisfiable));
+                fail();
+            } catch (UnsatisfiableConstraintException e) {
+            }
+            assertTrue(solver.hasConstraint(inside));
+            assertTrue(solver.hasConstraint(bridge));
+            assertFalse(solver.hasConstraint(unsatisfiable));
+            assertEquals(2, solver.getComponentCount());
+
+            solver.addEditVariable(lefts[0], Strength.STRONG);
+            solver.addEditVariable(lefts[2], Strength.STRONG);
+            solver.suggestValues(new Variable[]{lefts[0], lefts[2]}, new double[]{5, -3});
+            solver.updateVariables();
+            assertEquals(15, rights[0].getValue(), EPSILON);
+            assertTrue(lefts[1].getValue() >= 15 - EPSILON);
+            assertEquals(1, lefts[2].getValue(), EPSILON);
+            assertEquals(11, rights[2].getValue(), EPSILON);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentSolver() throws Exception {
+        final ConcurrentSolver solver = new ConcurrentSolver();
+        final Variable origin = new Variable("origin");
+        solver.addEditVariable(origin, Strength.STRONG).get();
+        solver.suggestValue(origin, 10).get();
+
+        final Variable[][] variables = new Variable[4][50];
+        Thread[] threads = new Thread[variables.length];
+        for (int t = 0; t < threads.length; t++) {
+            final Variable[] own = variables[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Variable previous = origin;
+                    for (int i = 0; i < own.length; i++) {
+                        own[i] = new Variable("v" + i);
+                        solver.addConstraint(Symbolics.equals(own[i], Symbolics.add(previous, 1.0)));
+                        previous = own[i];
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        solver.suggestValue(origin, 20);
+        solver.flush().get();
+        for (Variable[] own : variables) {
+            for (int i = 0; i < own.length; i++) {
+                assertEquals(21 + i, own[i].getValue(), EPSILON);
+            }
+        }
+
+        Constraint conflict = Symbolics.equals(variables[0][0], variables[0][1]);
+        Constraint fixed = Symbolics.equals(variables[1][0], 21.0);
+        List<Future<Void>> futures = solver.addConstraints(Arrays.asList(conflict, fixed, fixed));
+        try {
+            futures.get(0).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnsatisfiableConstraintException);
+        }
+        futures.get(1).get();
+        try {
+            futures.get(2).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DuplicateConstraintException);
+        }
+        assertFalse(solver.hasConstraint(conflict));
+        assertTrue(solver.hasConstraint(fixed));
+    }
+
+    @Test
+    public void valueSnapshots() throws Exception {
+        final Variable left = new Variable("left");
+        final Variable right = new Variable("right");
+        final Solver solver = new Solver();
+        solver.setPresolve(true);
+        solver.setPublishSnapshots(true);
+        solver.addConstraint(Symbolics.equals(right, Symbolics.add(left, 100.0)));
+        solver.addEditVariable(left, Strength.STRONG);
+        solver.updateVariables();
+
+        ValueSnapshot first = solver.getSnapshot();
+        assertTrue(first.contains(left));
+        assertTrue(first.contains(right));
+        solver.suggestValue(left, 10);
+        solver.updateVariables();
+        ValueSnapshot second = solver.getSnapshot();
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(0, first.getValue(left), EPSILON);
+        assertEquals(10, second.getValue(left), EPSILON);
+        assertEquals(110, second.getValue(right), EPSILON);
+        assertFalse(second.contains(new Variable("other")));
+
+        // A reader never sees the two edges of a single update apart.
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger torn = new AtomicInteger();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                long version = 0;
+                while (!done.get()) {
+                    ValueSnapshot snapshot = solver.getSnapshot();
+                    if (snapshot.getVersion() < version || Math.abs(snapshot.getValue(right) - snapshot.getValue(left) - 100) > EPSILON) {
+                        torn.incrementAndGet();
+                    }
+                    version = snapshot.getVersion();
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 10000; i++) {
+            solver.suggestValue(left, i);
+            solver.updateVariables();
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, torn.get());
+        assertEquals(9999, solver.getSnapshot().getValue(left), EPSILON);
+    }
+
+    @Test
+    public void forkSolver() throws Exception {
+        Variable left = new Variable("left");
+        Variable width = new Variable("width");
+        Variable right = new Variable("right");
+        Solver solver = new Solver();
+        solver.addConstraint(Symbolics.equals(right, Symbolics.add(left, width)));
+        solver.addConstraint(Symbolics.greaterThanOrEqualTo(width, 50.0));
+        Constraint preferred = Symbolics.equals(width, 100.0).setStrength(Strength.WEAK);
+        solver.addConstraint(preferred);
+        solver.addEditVariable(left, Strength.STRONG);
+        solver.suggestValue(left, 10);
+        solver.updateVariables();
+        assertEquals(110, right.getValue(), EPSILON);
+
+        // Drag the right edge in the fork.
+        Solver preview = solver.fork();
+        preview.addEditVariable(right, Strength.STRONG);
+        preview.suggestValue(right, 300);
+        preview.suggestValue(left, 20);
+        preview.removeConstraint(preferred);
+        preview.updateVariables();
+        assertEquals(20, left.getValue(), EPSILON);
+        assertEquals(280, width.getValue(), EPSILON);
+        assertFalse(preview.hasConstraint(preferred));
+        assertTrue(preview.hasEditVariable(right));
+
+        // The parent is untouched, and writes its own values back.
+        assertTrue(solver.hasConstraint(preferred));
+        assertFalse(solver.hasEditVariable(right));
+        solver.updateVariables();
+        assertEquals(10, left.getValue(), EPSILON);
+        assertEquals(100, width.getValue(), EPSILON);
+        assertEquals(110, right.getValue(), EPSILON);
+
+        // Changing the parent leaves the fork alone.
+        solver.suggestValue(left, 40);
+        solver.addConstraint(Symbolics.lessThanOrEqualTo(width, 60.0));
+        solver.updateVariables();
+        assertEquals(40, left.getValue(), EPSILON);
+        assertEquals(60, width.getValue(), EPSILON);
+        preview.updateVariables();
+        assertEquals(20, left.getValue(), EPSILON);
+        assertEquals(280, width.getValue(), EPSILON);
+        assertEquals(300, right.getValue(), EPSILON);
+
+        // A fork of a fork.
+        Solver nested = preview.fork();
+        nested.removeEditVariable(right);
+        nested.addConstraint(Symbolics.equals(width, 50.0).setStrength(Strength.WEAK));
+        nested.updateVariables();
+        assertEquals(20, left.getValue(), EPSILON);
+        assertEquals(50, width.getValue(), EPSILON);
+        preview.suggestValue(right, 200);
+        preview.updateVariables();
+        assertEquals(180, width.getValue(), EPSILON);
+        solver.updateVariables();
+        assertEquals(40, left.getValue(), EPSILON);
+        assertEquals(100, right.getValue(), EPSILON);
+    }
+
+    @Test
+    public void forkConstraintChanges() throws Exception {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Constraint position = Symbolics.equals(x, 10.0);
+        Constraint preferred = Symbolics.equals(y, 20.0).setStrength(Strength.WEAK);
+        Solver solver = new Solver();
+        solver.addConstraint(position);
+        solver.addConstraint(preferred);
+        solver.addConstraint(Symbolics.equals(y, 0.0).setStrength(Strength.MEDIUM));
+        solver.updateVariables();
+        assertEquals(0, y.getValue(), EPSILON);
+
+        Solver fork = solver.fork();
+        fork.updateConstant(position, -50);
+        fork.setStrength(preferred, Strength.STRONG);
+        fork.updateVariables();
+        assertEquals(50, x.getValue(), EPSILON);
+        assertEquals(20, y.getValue(), EPSILON);
+
+        // The same changes on the parent still take effect.
+        solver.updateVariables();
+        assertEquals(10, x.getValue(), EPSILON);
+        assertEquals(0, y.getValue(), EPSILON);
+        solver.updateConstant(position, -50);
+        solver.setStrength(preferred, Strength.STRONG);
+        solver.updateVariables();
+        assertEquals(50, x.getValue(), EPSILON);
+        assertEquals(20, y.getValue(), EPSILON);
+
+        // And changes on the parent do not show in the fork.
+        solver.updateConstant(position, -70);
+        fork.updateConstant(position, -10);
+        fork.updateVariables();
+        assertEquals(10, x.getValue(), EPSILON);
+    }
+
+    @Test
+    public void forkEditStrength() throws Exception {
+        Variable x = new Variable("x");
+        Solver solver = new Solver();
+        solver.setPresolve(true);
+        Constraint fixed = Symbolics.equals(Symbolics.add(x, 8.0), 0.0);
+        solver.addConstraint(fixed);
+        solver.addEditVariable(x, Strength.STRONG);
+        Solver fork = solver.fork();
+
+        // Removing the alias rebuilds the edit row with the new strength.
+        solver.setEditStrength(x, 2000);
+        solver.removeConstraint(fixed);
+        solver.addConstraint(Symbolics.equals(x, 17.0).setStrength(Strength.STRONG));
+        solver.updateVariables();
+        assertEquals(17, x.getValue(), EPSILON);
+
+        // The fork keeps the strength the edit variable had.
+        fork.removeConstraint(fixed);
+        fork.addConstraint(Symbolics.equals(x, 17.0).setStrength(Strength.MEDIUM));
+        fork.updateVariables();
+        assertEquals(0, x.getValue(), EPSILON);
+
+        // Constraints changed through one solver keep their own values.
+        Constraint preferred = Symbolics.equals(x, 5.0).setStrength(Strength.WEAK);
+        solver.addConstraint(preferred);
+        solver.removeEditVariable(x);
+        fork = solver.fork();
+        fork.setStrength(preferred, Strength.REQUIRED);
+        fork.updateConstant(preferred, -3);
+        fork.updateVariables();
+        assertEquals(3, x.getValue(), EPSILON);
+        solver.updateVariables();
+        assertEquals(17, x.getValue(), EPSILON);
+        assertEquals(Strength.WEAK, preferred.getStrength(), EPSILON);
+        assertEquals(-5, preferred.getExpression().getConstant(), EPSILON);
+    }
+
+    @Test
+    public void forkBookkeeping() throws Exception {
+        Variable[] xs = new Variable[100];
+        Constraint[] bounds = new Constraint[xs.length];
+        Solver solver = new Solver();
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = new Variable("x" + i);
+            bounds[i] = Symbolics.greaterThanOrEqualTo(xs[i], (double) i);
+            solver.addConstraint(bounds[i]);
+        }
+        Solver fork = solver.fork();
+
+        // Changes on either side, enough to grow the maps, stay on that side.
+        Variable[] ys = new Variable[100];
+        for (int i = 0; i < xs.length; i++) {
+            ys[i] = new Variable("y" + i);
+            fork.addConstraint(Symbolics.equals(ys[i], xs[i]));
+            if (i % 2 == 0) {
+                solver.removeConstraint(bounds[i]);
+            }
+        }
+        for (int i = 0; i < xs.length; i++) {
+            assertTrue(fork.hasConstraint(bounds[i]));
+            assertEquals(2, fork.getConstraints(xs[i]).size());
+            assertEquals(i % 2 != 0, solver.hasConstraint(bounds[i]));
+            assertEquals(i % 2 != 0 ? 1 : 0, solver.getConstraints(xs[i]).size());
+            assertTrue(solver.getConstraints(ys[i]).isEmpty());
+        }
+        fork.updateVariables();
+        for (int i = 0; i < xs.length; i++) {
+            assertEquals(i, ys[i].getValue(), EPSILON);
+        }
+    }
+
+    @Test
+    public void checkpointRollback() throws Exception {
+        Variable left = new Variable("left");
+        Variable width = new Variable("width");
+        Variable right = new Variable("right");
+        Solver solver = new Solver();
+        solver.addConstraint(Symbolics.equals(right, Symbolics.add(left, width)));
+        solver.addConstraint(Symbolics.equals(width, 100.0).setStrength(Strength.WEAK));
+        solver.addEditVariable(left, Strength.STRONG);
+        solver.suggestValue(left, 10);
+        solver.updateVariables();
+
+        Checkpoint checkpoint = solver.checkpoint();
+        Variable margin = new Variable("margin");
+        Constraint atLeast = Symbolics.greaterThanOrEqualTo(width, 150.0);
+        Constraint atMost = Symbolics.lessThanOrEqualTo(width, 120.0);
+        try {
+            solver.addConstraints(Arrays.asList(atLeast, Symbolics.equals(margin, 5.0), atMost));
+            fail();
+        } catch (UnsatisfiableConstraintException e) {
+            // The constraints before the failing one are in the solver.
+        }
+        solver.suggestValue(left, 50);
+        solver.updateVariables();
+        assertTrue(solver.hasConstraint(atLeast));
+        assertEquals(150, width.getValue(), EPSILON);
+        assertEquals(5, margin.getValue(), EPSILON);
+
+        solver.rollback(checkpoint);
+        assertFalse(solver.hasConstraint(atLeast));
+        assertFalse(solver.hasConstraint(atMost));
+        solver.updateVariables();
+        assertEquals(10, left.getValue(), EPSILON);
+        assertEquals(100, width.getValue(), EPSILON);
+        assertEquals(110, right.getValue(), EPSILON);
+        // Variables the checkpoint does not know keep their last value.
+        assertEquals(5, margin.getValue(), EPSILON);
+
+        // The checkpoint can be rolled back to again.
+        solver.addConstraint(atLeast);
+        solver.removeEditVariable(left);
+        solver.updateVariables();
+        assertEquals(150, width.getValue(), EPSILON);
+        solver.rollback(checkpoint);
+        assertTrue(solver.hasEditVariable(left));
+        solver.suggestValue(left, 30);
+        solver.updateVariables();
+        assertEquals(30, left.getValue(), EPSILON);
+        assertEquals(100, width.getValue(), EPSILON);
+        assertEquals(130, right.getValue(), EPSILON);
+
+        try {
+            new Solver().rollback(checkpoint);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void rollbackConstraintChanges() throws Exception {
+        Variable y = new Variable("y");
+        Variable z = new Variable("z");
+        Constraint lower = Symbolics.greaterThanOrEqualTo(y, 20.0);
+        Constraint preferred = Symbolics.equals(z, 10.0).setStrength(Strength.WEAK);
+        Solver solver = new Solver();
+        solver.addConstraint(lower);
+        solver.addConstraint(Symbolics.equals(y, 0.0).setStrength(Strength.WEAK));
+        solver.addConstraint(preferred);
+        solver.addConstraint(Symbolics.equals(z, 0.0).setStrength(Strength.MEDIUM));
+        solver.updateVariables();
+        assertEquals(20, y.getValue(), EPSILON);
+        assertEquals(0, z.getValue(), EPSILON);
+
+        Checkpoint checkpoint = solver.checkpoint();
+        solver.updateConstant(lower, -40);
+        solver.setStrength(preferred, Strength.STRONG);
+        solver.updateVariables();
+        assertEquals(40, y.getValue(), EPSILON);
+        assertEquals(10, z.getValue(), EPSILON);
+
+        solver.rollback(checkpoint);
+        solver.updateVariables();
+        assertEquals(20, y.getValue(), EPSILON);
+        assertEquals(0, z.getValue(), EPSILON);
+
+        // The same changes again take effect after the rollback.
+        solver.updateConstant(lower, -40);
+        solver.setStrength(preferred, Strength.STRONG);
+        solver.updateVariables();
+        assertEquals(40, y.getValue(), EPSILON);
+        assertEquals(10, z.getValue(), EPSILON);
+    }
+
+    @Test
+    public void nestedCheckpoints() throws Exception {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Solver solver = new Solver();
+        solver.addConstraint(Symbolics.equals(x, 10.0));
+        solver.updateVariables();
+
+        Checkpoint outer = solver.checkpoint();
+        Constraint sum = Symbolics.equals(y, Symbolics.add(x, 5.0));
+        solver.addConstraint(sum);
+        Checkpoint inner = solver.checkpoint();
+        solver.updateConstant(sum, 20);
+        solver.addConstraint(Symbolics.greaterThanOrEqualTo(y, 0.0));
+        solver.updateVariables();
+        assertEquals(30, y.getValue(), EPSILON);
+
+        solver.rollback(inner);
+        solver.updateVariables();
+        assertEquals(15, y.getValue(), EPSILON);
+
+        // Rolling back past a checkpoint releases it.
+        solver.rollback(outer);
+        assertFalse(solver.hasConstraint(sum));
+        try {
+            solver.rollback(inner);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        // So does releasing it, and a released checkpoint stays released.
+        solver.addConstraint(sum);
+        solver.release(outer);
+        solver.release(outer);
+        solver.updateVariables();
+        assertEquals(10, x.getValue(), EPSILON);
+        assertEquals(15, y.getValue(), EPSILON);
+        try {
+            solver.rollback(outer);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
 }